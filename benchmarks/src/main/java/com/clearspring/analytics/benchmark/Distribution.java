@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Key distributions used to drive the benchmarks.
+ */
+public enum Distribution
+{
+    /**
+     * Every id in the universe is equally likely.
+     */
+    UNIFORM
+            {
+                @Override
+                public long[] sample(int universe, int length, Random random)
+                {
+                    long[] ids = new long[length];
+                    for (int i = 0; i < length; i++)
+                    {
+                        ids[i] = random.nextInt(universe);
+                    }
+                    return ids;
+                }
+            },
+
+    /**
+     * Id of rank r is drawn with probability proportional to 1/r^s, with s = 1.07
+     * (close to what we observe for url and user id streams).
+     */
+    ZIPF
+            {
+                @Override
+                public long[] sample(int universe, int length, Random random)
+                {
+                    double[] cdf = new double[universe];
+                    double total = 0;
+                    for (int r = 0; r < universe; r++)
+                    {
+                        total += 1.0 / Math.pow(r + 1, ZIPF_EXPONENT);
+                        cdf[r] = total;
+                    }
+
+                    long[] ids = new long[length];
+                    for (int i = 0; i < length; i++)
+                    {
+                        int r = Arrays.binarySearch(cdf, random.nextDouble() * total);
+                        ids[i] = r < 0 ? Math.min(-r - 1, universe - 1) : r;
+                    }
+                    return ids;
+                }
+            };
+
+    public static final double ZIPF_EXPONENT = 1.07;
+
+    /**
+     * @param universe number of distinct ids that may be drawn
+     * @param length   number of ids to draw
+     * @param random   source of randomness
+     * @return ids in the range [0, universe)
+     */
+    public abstract long[] sample(int universe, int length, Random random);
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.benchmark;
+
+import java.util.Random;
+
+/**
+ * A pre-generated stream of keys so that benchmarks measure the sketch and not
+ * the key generation.  The same ids are exposed as strings, as raw longs and as
+ * well mixed 64 and 32 bit hashes.
+ * <p/>
+ * Not thread safe; give every benchmark thread its own instance.
+ */
+public class StreamKeys
+{
+    /**
+     * Length of the pre-generated stream.  A power of two so the cursor can wrap with a mask.
+     */
+    public static final int LENGTH = 1 << 18;
+
+    /**
+     * Size of the batches handed out by {@link #nextBatch()}; divides LENGTH.
+     */
+    public static final int BATCH = 1 << 12;
+
+    public final long[] ids;
+    public final String[] strings;
+    public final long[] hashes;
+    public final int[] intHashes;
+
+    private int cursor;
+    private int batchCursor;
+
+    /**
+     * @param distribution how ids are drawn
+     * @param universe     number of distinct ids the stream may contain
+     * @param seed         seed for the id generator; use different seeds for independent streams
+     */
+    public StreamKeys(Distribution distribution, int universe, long seed)
+    {
+        this(distribution, universe, seed, 0);
+    }
+
+    /**
+     * @param offset added to every id, use it to build streams over disjoint universes
+     */
+    public StreamKeys(Distribution distribution, int universe, long seed, long offset)
+    {
+        ids = distribution.sample(universe, LENGTH, new Random(seed));
+        strings = new String[LENGTH];
+        hashes = new long[LENGTH];
+        intHashes = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++)
+        {
+            ids[i] += offset;
+            strings[i] = "key-" + ids[i];
+            hashes[i] = mix(ids[i]);
+            intHashes[i] = (int) (hashes[i] >>> 32);
+        }
+    }
+
+    /**
+     * @return the position of the next key, wrapping around at the end of the stream
+     */
+    public int next()
+    {
+        return cursor++ & (LENGTH - 1);
+    }
+
+    /**
+     * @return the position of the next batch of {@link #BATCH} keys, wrapping around at the
+     *         end of the stream.  A batch never runs past the end of the stream.
+     */
+    public int nextBatch()
+    {
+        int offset = batchCursor;
+        batchCursor = (batchCursor + BATCH) & (LENGTH - 1);
+        return offset;
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer; spreads sequential ids over all 64 bits.
+     */
+    public static long mix(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
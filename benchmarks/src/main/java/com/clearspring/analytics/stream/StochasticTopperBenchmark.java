@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StochasticTopperBenchmark
+{
+    @Param({"100", "1000", "10000"})
+    public int sampleSize;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private StochasticTopper<String> topper;
+    private StochasticTopper<String> full;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new StochasticTopper<String>(sampleSize, 1L);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.strings[i]);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        topper = new StochasticTopper<String>(sampleSize, 1L);
+    }
+
+    @Benchmark
+    public boolean offer()
+    {
+        return topper.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public List<String> peek()
+    {
+        return full.peek(10);
+    }
+}
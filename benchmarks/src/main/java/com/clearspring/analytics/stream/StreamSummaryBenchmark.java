@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamSummaryBenchmark
+{
+    @Param({"100", "1000", "10000"})
+    public int capacity;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private StreamSummary<String> summary;
+    private ArrayStreamSummary<String> arraySummary;
+    private StreamSummary<Long> boxedSummary;
+    private LongStreamSummary longSummary;
+    private StreamSummary<String> full;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new StreamSummary<String>(capacity);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.strings[i]);
+        }
+        bytes = full.toBytes();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        summary = new StreamSummary<String>(capacity);
+        arraySummary = new ArrayStreamSummary<String>(capacity);
+        boxedSummary = new StreamSummary<Long>(capacity);
+        longSummary = new LongStreamSummary(capacity);
+    }
+
+    @Benchmark
+    public boolean offer()
+    {
+        return summary.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerArray()
+    {
+        return arraySummary.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerBoxedLong()
+    {
+        return boxedSummary.offer(keys.ids[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerLong()
+    {
+        return longSummary.offer(keys.ids[keys.next()]);
+    }
+
+    @Benchmark
+    public List<Counter<String>> topK()
+    {
+        return full.topK(10);
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws IOException
+    {
+        return full.toBytes();
+    }
+
+    @Benchmark
+    public StreamSummary<String> fromBytes() throws IOException, ClassNotFoundException
+    {
+        return new StreamSummary<String>(bytes);
+    }
+}
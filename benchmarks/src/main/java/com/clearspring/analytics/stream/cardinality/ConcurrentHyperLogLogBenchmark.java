@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * All benchmark threads share one estimator; each thread replays its own key stream.
+ * Override the thread count with -t on the command line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentHyperLogLogBenchmark
+{
+    @Param({"10", "14", "16"})
+    public int log2m;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private ConcurrentHyperLogLog hll;
+    private final AtomicInteger seeds = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        hll = new ConcurrentHyperLogLog(log2m);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKeys
+    {
+        StreamKeys keys;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentHyperLogLogBenchmark benchmark)
+        {
+            keys = new StreamKeys(benchmark.distribution, benchmark.universe, benchmark.seeds.incrementAndGet());
+        }
+    }
+
+    @Benchmark
+    public boolean offerHashed(ThreadKeys threadKeys)
+    {
+        StreamKeys keys = threadKeys.keys;
+        return hll.offerHashed(keys.hashes[keys.next()]);
+    }
+
+    @Benchmark
+    public long cardinality()
+    {
+        return hll.cardinality();
+    }
+}
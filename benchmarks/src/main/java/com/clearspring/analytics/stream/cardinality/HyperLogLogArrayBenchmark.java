@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * Each key picks its counter by id modulo the number of counters, so the distribution
+ * decides both which counters are hot and which registers they touch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperLogLogArrayBenchmark
+{
+    @Param({"8", "10"})
+    public int log2m;
+
+    @Param({"1000", "100000"})
+    public int counters;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private int[] ids;
+    private HyperLogLogArray array;
+    private HyperLogLogArray full;
+    private int id;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        ids = new int[StreamKeys.LENGTH];
+        full = new HyperLogLogArray(log2m, counters);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            ids[i] = (int) (keys.ids[i] % counters);
+            full.offerHashed(ids[i], keys.hashes[i]);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        array = new HyperLogLogArray(log2m, counters);
+    }
+
+    @Benchmark
+    public boolean offerHashed()
+    {
+        int i = keys.next();
+        return array.offerHashed(ids[i], keys.hashes[i]);
+    }
+
+    @Benchmark
+    public long cardinality()
+    {
+        id = id + 1 == counters ? 0 : id + 1;
+        return full.cardinality(id);
+    }
+
+    @Benchmark
+    public void merge() throws CardinalityMergeException
+    {
+        id = id + 1 == counters ? 0 : id + 1;
+        array.merge(id, full, id);
+    }
+}
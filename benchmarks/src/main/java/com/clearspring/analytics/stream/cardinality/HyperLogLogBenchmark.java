@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperLogLogBenchmark
+{
+    @Param({"10", "14", "16"})
+    public int log2m;
+
+    /**
+     * Whether the estimator offered to starts sparse.  Fed from the large universe it turns
+     * dense during the first iteration, use the small universe to measure sparse mode itself.
+     */
+    @Param({"false", "true"})
+    public boolean sparse;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    /**
+     * Number of estimators folded together by mergeMany.
+     */
+    private static final int MANY = 64;
+
+    private StreamKeys keys;
+    private HyperLogLog hll;
+    private HyperLogLog full;
+    private HyperLogLog tracked;
+    private HyperLogLog other;
+    private HyperLogLog[] many;
+    private byte[][] manyBytes;
+    private byte[] bytes;
+    private ByteBuffer out;
+    private ByteBuffer serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new HyperLogLog(log2m);
+        other = new HyperLogLog(log2m);
+        StreamKeys otherKeys = new StreamKeys(distribution, universe, 2, universe);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.strings[i]);
+            other.offer(otherKeys.strings[i]);
+        }
+        bytes = full.getBytes();
+        out = ByteBuffer.allocateDirect(full.serializedSize());
+        serialized = ByteBuffer.allocateDirect(full.serializedSize());
+        full.writeTo(serialized);
+        tracked = HyperLogLog.Builder.build(bytes);
+        tracked.trackRegisterHistogram();
+        byte[] otherBytes = other.getBytes();
+        many = new HyperLogLog[MANY];
+        for (int i = 0; i < many.length; i++)
+        {
+            many[i] = HyperLogLog.Builder.build(otherBytes);
+        }
+        manyBytes = new byte[MANY][];
+        for (int i = 0; i < manyBytes.length; i++)
+        {
+            manyBytes[i] = otherBytes.clone();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        hll = new HyperLogLog(log2m, sparse);
+    }
+
+    @Benchmark
+    public boolean offer()
+    {
+        return hll.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedLong()
+    {
+        return hll.offerHashed(keys.hashes[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedInt()
+    {
+        return hll.offerHashed(keys.intHashes[keys.next()]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedLongBatch()
+    {
+        return hll.offerHashed(keys.hashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedIntBatch()
+    {
+        return hll.offerHashed(keys.intHashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    public long cardinality()
+    {
+        return full.cardinality();
+    }
+
+    @Benchmark
+    public long cardinalityTrackingHistogram()
+    {
+        return tracked.cardinality();
+    }
+
+    @Benchmark
+    public ICardinality merge() throws CardinalityMergeException
+    {
+        return full.merge(other);
+    }
+
+    @Benchmark
+    public ICardinality mergeMany() throws CardinalityMergeException
+    {
+        return full.merge(many);
+    }
+
+    @Benchmark
+    public long viewCardinality()
+    {
+        return HyperLogLogView.wrap(bytes).cardinality();
+    }
+
+    /**
+     * Union of serialized estimators, deserializing each one first.
+     */
+    @Benchmark
+    public HyperLogLog mergeManyBuilt() throws IOException, CardinalityMergeException
+    {
+        HyperLogLog[] hlls = new HyperLogLog[manyBytes.length];
+        for (int i = 0; i < hlls.length; i++)
+        {
+            hlls[i] = HyperLogLog.Builder.build(manyBytes[i]);
+        }
+        HyperLogLog merged = new HyperLogLog(log2m);
+        merged.addAll(hlls);
+        return merged;
+    }
+
+    /**
+     * Union of serialized estimators, reading their registers in place.
+     */
+    @Benchmark
+    public HyperLogLog mergeManyViews() throws CardinalityMergeException
+    {
+        HyperLogLogView[] views = new HyperLogLogView[manyBytes.length];
+        for (int i = 0; i < views.length; i++)
+        {
+            views[i] = HyperLogLogView.wrap(manyBytes[i]);
+        }
+        HyperLogLog merged = new HyperLogLog(log2m);
+        merged.addAll(views);
+        return merged;
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException
+    {
+        return full.getBytes();
+    }
+
+    @Benchmark
+    public HyperLogLog build() throws IOException
+    {
+        return HyperLogLog.Builder.build(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo()
+    {
+        out.clear();
+        full.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public HyperLogLog readFrom()
+    {
+        serialized.clear();
+        return HyperLogLog.readFrom(serialized);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * sp = 0 runs the estimator in normal mode from the start, sp = 25 starts sparse.
+ * A sparse estimator fed from the large universe converts to normal mode during the
+ * first iteration, use the small universe to measure the sparse representation itself.
+ * compressed keeps the sparse sets in their delta encoded varint form.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperLogLogPlusBenchmark
+{
+    @Param({"10", "14", "16"})
+    public int p;
+
+    @Param({"0", "25"})
+    public int sp;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    /**
+     * Number of estimators folded together by mergeMany.
+     */
+    private static final int MANY = 64;
+
+    private StreamKeys keys;
+    private HyperLogLogPlus hll;
+    private HyperLogLogPlus full;
+    private HyperLogLogPlus tracked;
+    private HyperLogLogPlus improved;
+    private HyperLogLogPlus other;
+    private HyperLogLogPlus[] many;
+    private byte[][] manyBytes;
+    private byte[] bytes;
+    private ByteBuffer out;
+    private ByteBuffer serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = newEstimator();
+        other = newEstimator();
+        StreamKeys otherKeys = new StreamKeys(distribution, universe, 2, universe);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.strings[i]);
+            other.offer(otherKeys.strings[i]);
+        }
+        bytes = full.getBytes();
+        out = ByteBuffer.allocateDirect(full.serializedSize());
+        serialized = ByteBuffer.allocateDirect(full.serializedSize());
+        full.writeTo(serialized);
+        tracked = compress(HyperLogLogPlus.Builder.build(bytes));
+        tracked.trackRegisterHistogram();
+        improved = compress(HyperLogLogPlus.Builder.build(bytes));
+        improved.trackRegisterHistogram();
+        improved.useImprovedEstimator();
+        byte[] otherBytes = other.getBytes();
+        many = new HyperLogLogPlus[MANY];
+        for (int i = 0; i < many.length; i++)
+        {
+            many[i] = compress(HyperLogLogPlus.Builder.build(otherBytes));
+        }
+        // small sketches, each from its own slice of the stream, as in a compaction job
+        manyBytes = new byte[MANY][];
+        int slice = 256;
+        for (int i = 0; i < manyBytes.length; i++)
+        {
+            HyperLogLogPlus sketch = newEstimator();
+            for (int j = i * slice; j < (i + 1) * slice; j++)
+            {
+                sketch.offer(otherKeys.strings[j]);
+            }
+            manyBytes[i] = sketch.getBytes();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        hll = newEstimator();
+    }
+
+    private HyperLogLogPlus newEstimator()
+    {
+        return compress(new HyperLogLogPlus(p, sp));
+    }
+
+    private HyperLogLogPlus compress(HyperLogLogPlus estimator)
+    {
+        if (compressed)
+        {
+            estimator.compressSparseSet();
+        }
+        return estimator;
+    }
+
+    @Benchmark
+    public boolean offer()
+    {
+        return hll.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedLong()
+    {
+        return hll.offerHashed(keys.hashes[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedInt()
+    {
+        return hll.offerHashed(keys.intHashes[keys.next()]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedLongBatch()
+    {
+        return hll.offerHashed(keys.hashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedIntBatch()
+    {
+        return hll.offerHashed(keys.intHashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    public long cardinality()
+    {
+        return full.cardinality();
+    }
+
+    @Benchmark
+    public long cardinalityTrackingHistogram()
+    {
+        return tracked.cardinality();
+    }
+
+    @Benchmark
+    public long cardinalityImproved()
+    {
+        return improved.cardinality();
+    }
+
+    @Benchmark
+    public ICardinality merge() throws CardinalityMergeException
+    {
+        return full.merge(other);
+    }
+
+    @Benchmark
+    public ICardinality mergeMany() throws CardinalityMergeException
+    {
+        return full.merge(many);
+    }
+
+    /**
+     * Union of serialized estimators, deserializing them and serializing the result.
+     */
+    @Benchmark
+    public byte[] mergeManyDecoded() throws IOException, CardinalityMergeException
+    {
+        HyperLogLogPlus merged = newEstimator();
+        for (byte[] sketch : manyBytes)
+        {
+            merged.addAll(HyperLogLogPlus.readFrom(ByteBuffer.wrap(sketch), compressed));
+        }
+        return merged.getBytes();
+    }
+
+    @Benchmark
+    public byte[] mergeManySerialized() throws CardinalityMergeException
+    {
+        return HyperLogLogPlus.mergeSerialized(manyBytes);
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException
+    {
+        return full.getBytes();
+    }
+
+    @Benchmark
+    public HyperLogLogPlus build() throws IOException
+    {
+        return HyperLogLogPlus.Builder.build(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo()
+    {
+        out.clear();
+        full.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public HyperLogLogPlus readFrom()
+    {
+        serialized.clear();
+        return HyperLogLogPlus.readFrom(serialized, compressed);
+    }
+}
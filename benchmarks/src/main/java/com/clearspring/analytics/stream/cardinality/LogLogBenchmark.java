@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogLogBenchmark
+{
+    @Param({"10", "14", "16"})
+    public int k;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private LogLog ll;
+    private LogLog full;
+    private LogLog other;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new LogLog(k);
+        other = new LogLog(k);
+        StreamKeys otherKeys = new StreamKeys(distribution, universe, 2, universe);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.strings[i]);
+            other.offer(otherKeys.strings[i]);
+        }
+        bytes = full.getBytes().clone();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        ll = new LogLog(k);
+    }
+
+    @Benchmark
+    public boolean offer()
+    {
+        return ll.offer(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedInt()
+    {
+        return ll.offerHashed(keys.intHashes[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean offerHashedLong()
+    {
+        return ll.offerHashed(keys.hashes[keys.next()]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedLongBatch()
+    {
+        return ll.offerHashed(keys.hashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(StreamKeys.BATCH)
+    public boolean offerHashedIntBatch()
+    {
+        return ll.offerHashed(keys.intHashes, keys.nextBatch(), StreamKeys.BATCH);
+    }
+
+    @Benchmark
+    public long cardinality()
+    {
+        return full.cardinality();
+    }
+
+    @Benchmark
+    public ICardinality merge() throws CardinalityMergeException
+    {
+        return full.merge(other);
+    }
+
+    @Benchmark
+    public byte[] getBytes()
+    {
+        return full.getBytes();
+    }
+
+    @Benchmark
+    public LogLog build()
+    {
+        return new LogLog(bytes);
+    }
+}
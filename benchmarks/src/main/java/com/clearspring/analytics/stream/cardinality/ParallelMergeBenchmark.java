@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * Union of many estimators, each over its own slice of the stream, merged on the calling
+ * thread and with {@link ParallelMerge}.  HyperLogLogPlus estimators with sp = 25 are left
+ * sparse by their small slices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelMergeBenchmark
+{
+    @Param({"HLL", "HLLP_SPARSE", "HLLP_NORMAL", "LINEAR", "ADAPTIVE"})
+    public String type;
+
+    @Param({"256", "4096"})
+    public int count;
+
+    @Param({"4"})
+    public int threads;
+
+    private List<ICardinality> estimators;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        StreamKeys keys = new StreamKeys(Distribution.UNIFORM, 1000000, 1);
+        estimators = new ArrayList<ICardinality>(count);
+        int slice = StreamKeys.LENGTH / count;
+        for (int i = 0; i < count; i++)
+        {
+            ICardinality estimator = newEstimator();
+            for (int j = i * slice; j < (i + 1) * slice; j++)
+            {
+                estimator.offerHashed(keys.hashes[j]);
+            }
+            estimators.add(estimator);
+        }
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    private ICardinality newEstimator()
+    {
+        if (type.equals("HLL"))
+        {
+            return new HyperLogLog(14);
+        }
+        if (type.equals("HLLP_SPARSE"))
+        {
+            return new HyperLogLogPlus(14, 25);
+        }
+        if (type.equals("HLLP_NORMAL"))
+        {
+            return new HyperLogLogPlus(14);
+        }
+        if (type.equals("LINEAR"))
+        {
+            return new LinearCounting(1 << 14);
+        }
+        return new AdaptiveCounting(14);
+    }
+
+    @Benchmark
+    public ICardinality sequential() throws CardinalityMergeException
+    {
+        return estimators.get(0).merge(estimators.subList(1, count).toArray(new ICardinality[count - 1]));
+    }
+
+    @Benchmark
+    public ICardinality parallel() throws CardinalityMergeException, InterruptedException
+    {
+        return ParallelMerge.merge(executor, estimators);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountMinSketchBenchmark
+{
+    @Param({"0.001", "0.0001"})
+    public double eps;
+
+    @Param({"0.99", "0.999"})
+    public double confidence;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private CountMinSketch sketch;
+    private CountMinSketch full;
+    private CountMinSketch other;
+    private byte[] bytes;
+    private ByteBuffer out;
+    private ByteBuffer serialized;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new CountMinSketch(eps, confidence, 1);
+        other = new CountMinSketch(eps, confidence, 1);
+        StreamKeys otherKeys = new StreamKeys(distribution, universe, 2);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.add(keys.ids[i], 1);
+            other.add(otherKeys.ids[i], 1);
+        }
+        bytes = CountMinSketch.serialize(full);
+        out = ByteBuffer.allocateDirect(full.serializedSize());
+        serialized = ByteBuffer.allocateDirect(full.serializedSize());
+        full.writeTo(serialized);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        sketch = new CountMinSketch(eps, confidence, 1);
+    }
+
+    @Benchmark
+    public long addLong()
+    {
+        sketch.add(keys.ids[keys.next()], 1);
+        return sketch.size();
+    }
+
+    @Benchmark
+    public long addString()
+    {
+        sketch.add(keys.strings[keys.next()], 1);
+        return sketch.size();
+    }
+
+    @Benchmark
+    public long estimateCountLong()
+    {
+        return full.estimateCount(keys.ids[keys.next()]);
+    }
+
+    @Benchmark
+    public long estimateCountString()
+    {
+        return full.estimateCount(keys.strings[keys.next()]);
+    }
+
+    @Benchmark
+    public CountMinSketch merge() throws FrequencyMergeException
+    {
+        return CountMinSketch.merge(full, other);
+    }
+
+    @Benchmark
+    public byte[] serialize()
+    {
+        return CountMinSketch.serialize(full);
+    }
+
+    @Benchmark
+    public CountMinSketch deserialize()
+    {
+        return CountMinSketch.deserialize(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo()
+    {
+        out.clear();
+        full.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public CountMinSketch readFrom()
+    {
+        serialized.clear();
+        return CountMinSketch.readFrom(serialized);
+    }
+}
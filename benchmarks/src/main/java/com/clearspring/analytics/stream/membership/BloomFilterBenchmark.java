@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * Filters are sized for the whole key universe.  Lookups use keys from an independent
+ * stream so that roughly half of them miss.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark
+{
+    @Param({"0.01", "0.0001"})
+    public double maxFalsePosProbability;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private StreamKeys lookups;
+    private BloomFilter filter;
+    private BloomFilter full;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        lookups = new StreamKeys(distribution, 2 * universe, 2);
+        full = new BloomFilter(universe, maxFalsePosProbability);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.add(keys.strings[i]);
+        }
+        bytes = BloomFilter.serialize(full);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        filter = new BloomFilter(universe, maxFalsePosProbability);
+    }
+
+    @Benchmark
+    public BloomFilter add()
+    {
+        filter.add(keys.strings[keys.next()]);
+        return filter;
+    }
+
+    @Benchmark
+    public boolean isPresent()
+    {
+        return full.isPresent(lookups.strings[lookups.next()]);
+    }
+
+    @Benchmark
+    public byte[] serialize()
+    {
+        return BloomFilter.serialize(full);
+    }
+
+    @Benchmark
+    public BloomFilter deserialize()
+    {
+        return BloomFilter.deserialize(bytes);
+    }
+}
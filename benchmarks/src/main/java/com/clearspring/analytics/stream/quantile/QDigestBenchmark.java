@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.clearspring.analytics.benchmark.Distribution;
+import com.clearspring.analytics.benchmark.StreamKeys;
+
+/**
+ * The stream ids are used as the values inserted into the digest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QDigestBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public double compressionFactor;
+
+    @Param({"UNIFORM", "ZIPF"})
+    public Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    public int universe;
+
+    private StreamKeys keys;
+    private QDigest digest;
+    private QDigest full;
+    private QDigest other;
+    private byte[] bytes;
+    private ByteBuffer out;
+    private ByteBuffer serialized;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new StreamKeys(distribution, universe, 1);
+        full = new QDigest(compressionFactor);
+        other = new QDigest(compressionFactor);
+        StreamKeys otherKeys = new StreamKeys(distribution, universe, 2);
+        for (int i = 0; i < StreamKeys.LENGTH; i++)
+        {
+            full.offer(keys.ids[i]);
+            other.offer(otherKeys.ids[i]);
+        }
+        bytes = QDigest.serialize(full);
+        out = ByteBuffer.allocateDirect(full.serializedSize());
+        serialized = ByteBuffer.allocateDirect(full.serializedSize());
+        full.writeTo(serialized);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        digest = new QDigest(compressionFactor);
+    }
+
+    @Benchmark
+    public QDigest offer()
+    {
+        digest.offer(keys.ids[keys.next()]);
+        return digest;
+    }
+
+    @Benchmark
+    public long getQuantile()
+    {
+        return full.getQuantile(0.99);
+    }
+
+    @Benchmark
+    public QDigest unionOf()
+    {
+        return QDigest.unionOf(full, other);
+    }
+
+    @Benchmark
+    public byte[] serialize()
+    {
+        return QDigest.serialize(full);
+    }
+
+    @Benchmark
+    public QDigest deserialize()
+    {
+        return QDigest.deserialize(bytes);
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo()
+    {
+        out.clear();
+        full.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public QDigest readFrom()
+    {
+        serialized.clear();
+        return QDigest.readFrom(serialized);
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.clearspring.analytics.util.ExternalizableUtil;
+import com.clearspring.analytics.util.Pair;
+
+/**
+ * A {@link StreamSummary} laid out in arrays: the counters and buckets are parallel arrays of
+ * primitives, see {@link CounterSlots}, and items are found through an open addressing index
+ * of their slots, so that offering an item allocates nothing once the summary is created.
+ * <p/>
+ * Offering the same stream to both gives the same counters in the same order, and the two
+ * serialize to the same bytes, so either can read what the other wrote.
+ *
+ * @param <T> type of data in the stream to be summarized
+ */
+public class ArrayStreamSummary<T> implements ITopK<T>, Externalizable
+{
+    private static final long serialVersionUID = -1197335143578054188L;
+
+    private static final int SPREAD = 0x9e3779b9;
+
+    protected int capacity;
+    private CounterSlots slots;
+    private Object[] items;
+    /**
+     * Hash code of each item, so probing the index only reads the items that match it
+     */
+    private int[] hashes;
+    /**
+     * slot + 1 of each item by hash, with linear probing, 0 where empty, at most a quarter
+     * full: nearly every offer past capacity misses, evicts and inserts, so runs are kept short
+     */
+    private int[] index;
+    private int shift;
+    /**
+     * Item dropped by the last offer
+     */
+    private T dropped;
+
+    /**
+     * @param capacity maximum size (larger capacities improve accuracy)
+     */
+    public ArrayStreamSummary(int capacity)
+    {
+        this.capacity = capacity;
+        allocate();
+    }
+
+    private void allocate()
+    {
+        slots = new CounterSlots(capacity);
+        items = new Object[capacity];
+        hashes = new int[capacity];
+        int tableSize = 2;
+        while (tableSize < 4 * capacity)
+        {
+            tableSize <<= 1;
+        }
+        index = new int[tableSize];
+        shift = Integer.SIZE - Integer.numberOfTrailingZeros(tableSize);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Algorithm: <i>Space-Saving</i>
+     *
+     * @param item stream element (<i>e</i>)
+     * @return false if item was already in the stream summary, true otherwise
+     */
+    @Override
+    public boolean offer(T item)
+    {
+        return offer(item, 1);
+    }
+
+    /**
+     * Algorithm: <i>Space-Saving</i>
+     *
+     * @param item stream element (<i>e</i>)
+     * @return false if item was already in the stream summary, true otherwise
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean offer(T item, int incrementCount)
+    {
+        dropped = null;
+        int hash = item == null ? 0 : item.hashCode();
+        int position = find(item, hash);
+        int slot = index[position] - 1;
+        if (slot >= 0)
+        {
+            slots.increment(slot, incrementCount);
+            return false;
+        }
+
+        if (slots.size() < capacity)
+        {
+            slot = slots.add(incrementCount);
+        }
+        else
+        {
+            slot = slots.recycle();
+            dropped = (T) items[slot];
+            remove(position(slot));
+            position = find(item, hash);
+            slots.increment(slot, incrementCount);
+        }
+        items[slot] = item;
+        hashes[slot] = hash;
+        index[position] = slot + 1;
+        return true;
+    }
+
+    /**
+     * @param item stream element (<i>e</i>)
+     * @return item dropped from summary if an item was dropped, null otherwise
+     */
+    public T offerReturnDropped(T item, int incrementCount)
+    {
+        offer(item, incrementCount);
+        return dropped;
+    }
+
+    /**
+     * @param item stream element (<i>e</i>)
+     * @return Pair<isNewItem, itemDropped> where isNewItem is the return value of offer() and itemDropped is null if no item was dropped
+     */
+    public Pair<Boolean, T> offerReturnAll(T item, int incrementCount)
+    {
+        boolean isNewItem = offer(item, incrementCount);
+        return new Pair<Boolean, T>(isNewItem, dropped);
+    }
+
+    private int home(int hash)
+    {
+        return (hash * SPREAD) >>> shift;
+    }
+
+    /**
+     * @return the position of the item in the index, or else of the empty entry it would take
+     */
+    private int find(Object item, int hash)
+    {
+        int mask = index.length - 1;
+        int position = home(hash);
+        for (int entry; (entry = index[position]) != 0; position = (position + 1) & mask)
+        {
+            if (hashes[entry - 1] == hash)
+            {
+                Object other = items[entry - 1];
+                if (item == null ? other == null : item.equals(other))
+                {
+                    break;
+                }
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return the position of the slot in the index, found without reading its item
+     */
+    private int position(int slot)
+    {
+        int mask = index.length - 1;
+        int position = home(hashes[slot]);
+        while (index[position] != slot + 1)
+        {
+            position = (position + 1) & mask;
+        }
+        return position;
+    }
+
+    /**
+     * Empties the entry at the position, shifting back later entries of the same run that
+     * could not be found past the gap otherwise
+     */
+    private void remove(int position)
+    {
+        int mask = index.length - 1;
+        int gap = position;
+        for (int next = (gap + 1) & mask; index[next] != 0; next = (next + 1) & mask)
+        {
+            int home = home(hashes[index[next] - 1]);
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                index[gap] = index[next];
+                gap = next;
+            }
+        }
+        index[gap] = 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> peek(int k)
+    {
+        List<T> topK = new ArrayList<T>(k);
+        for (int c : slots.topDown(k))
+        {
+            topK.add((T) items[c]);
+        }
+        return topK;
+    }
+
+    public List<Counter<T>> topK(int k)
+    {
+        List<Counter<T>> topK = new ArrayList<Counter<T>>(k);
+        for (int c : slots.topDown(k))
+        {
+            topK.add(counter(c));
+        }
+        return topK;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Counter<T> counter(int slot)
+    {
+        Counter<T> counter = new Counter<T>(null, (T) items[slot]);
+        counter.count = slots.counts[slot];
+        counter.error = slots.errors[slot];
+        return counter;
+    }
+
+    /**
+     * @return number of items stored
+     */
+    public int size()
+    {
+        return slots.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return slots.toString(new CounterSlots.Items()
+        {
+            @Override
+            public void append(StringBuilder sb, int slot)
+            {
+                sb.append(items[slot]);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+    {
+        this.capacity = in.readInt();
+        allocate();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+        {
+            Counter<T> c = (Counter<T>) in.readObject();
+            int slot = slots.append(c.count, c.error);
+            int hash = c.item == null ? 0 : c.item.hashCode();
+            items[slot] = c.item;
+            hashes[slot] = hash;
+            index[find(c.item, hash)] = slot + 1;
+        }
+    }
+
+    /**
+     * Writes the same bytes as {@link StreamSummary#writeExternal(ObjectOutput)}
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeInt(this.capacity);
+        out.writeInt(this.size());
+        for (int c : slots.bottomUp())
+        {
+            out.writeObject(counter(c));
+        }
+    }
+
+    /**
+     * For de-serialization
+     */
+    public ArrayStreamSummary()
+    {
+    }
+
+    /**
+     * For de-serialization
+     *
+     * @param bytes
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public ArrayStreamSummary(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        fromBytes(bytes);
+    }
+
+    public void fromBytes(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    public byte[] toBytes() throws IOException
+    {
+        return ExternalizableUtil.toBytes(this);
+    }
+}
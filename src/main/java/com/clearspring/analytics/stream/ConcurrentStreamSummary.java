@@ -21,9 +21,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Based on the <i>Space-Saving</i> algorithm and the <i>Stream-Summary</i>
@@ -32,6 +31,11 @@ import java.util.concurrent.atomic.AtomicReference;
  * by Metwally, Agrawal, and Abbadi
  * 
  * Ideally used in multithreaded applications, otherwise see {@link StreamSummary}
+ * <p/>
+ * Items are found through a concurrent hash map and kept in order of count in a concurrent
+ * skip list, whose first entry is the item to evict, so an offer takes O(log capacity) rather
+ * than a scan of every item.  Updates to one item are serialized on that item; no lock is
+ * ever held while waiting for another, and nothing spins.
  *
  * @param <T> type of data in the stream to be summarized
  * @author Eric Vlaanderen
@@ -39,18 +43,23 @@ import java.util.concurrent.atomic.AtomicReference;
 public class ConcurrentStreamSummary<T> implements ITopK<T>
 {
 	private final int capacity;
-	private final ConcurrentHashMap<T, ScoredItem> itemMap;
-	private final AtomicReference<ScoredItem> minVal;
+	private final ConcurrentHashMap<T, Node<T>> itemMap;
+	private final ConcurrentSkipListMap<Rank, Node<T>> ranks;
 	private final AtomicLong size;
-	private final AtomicBoolean reachCapacity;
+	/**
+	 * Items added with nothing ranked to evict, still to be evicted by later new items
+	 */
+	private final AtomicLong excess;
+	private final AtomicLong sequence;
 
 	public ConcurrentStreamSummary(final int capacity)
 	{
 		this.capacity = capacity;
-		this.minVal = new AtomicReference<ScoredItem>();
 		this.size = new AtomicLong(0);
-		this.itemMap = new ConcurrentHashMap<T, ScoredItem>(capacity);
-		this.reachCapacity = new AtomicBoolean(false);
+		this.excess = new AtomicLong(0);
+		this.sequence = new AtomicLong(0);
+		this.itemMap = new ConcurrentHashMap<T, Node<T>>(capacity);
+		this.ranks = new ConcurrentSkipListMap<Rank, Node<T>>();
 	}
 
 	@Override
@@ -59,50 +68,121 @@ public class ConcurrentStreamSummary<T> implements ITopK<T>
 		return offer(element, 1);
 	}
 
+	/**
+	 * @return true if the element was already in the summary
+	 */
 	@Override
 	public boolean offer(final T element, final int incrementCount)
 	{
-		long val = incrementCount;
-		ScoredItem value = new ScoredItem(element, incrementCount);
-		ScoredItem oldVal = itemMap.putIfAbsent(element, value);
-		if (oldVal != null)
+		while (true)
 		{
-			val = oldVal.addAndGetCount(incrementCount);
+			Node<T> node = itemMap.get(element);
+			if (node != null)
+			{
+				synchronized (node)
+				{
+					if (!node.evicted)
+					{
+						// ranked anew before the old rank goes, so the order is never without it
+						Rank old = node.rank;
+						long count = node.item.addAndGetCount(incrementCount);
+						rank(node, count);
+						ranks.remove(old);
+						return true;
+					}
+				}
+				// evicted since it was looked up, offer it as a new item
+				continue;
+			}
+
+			node = new Node<T>(new ScoredItem<T>(element, incrementCount));
+			// other threads finding the new item wait for it to take its place in the order
+			synchronized (node)
+			{
+				if (itemMap.putIfAbsent(element, node) != null)
+				{
+					continue;
+				}
+				if (size.incrementAndGet() > capacity)
+				{
+					// one for this item, and one more while earlier items found nothing to evict
+					int evictions = takeExcess() ? 2 : 1;
+					boolean evicted = false;
+					long inherited = 0;
+					for (int i = 0; i < evictions; i++)
+					{
+						Node<T> min = removeMin();
+						if (min == null)
+						{
+							excess.incrementAndGet();
+						}
+						else
+						{
+							size.decrementAndGet();
+							evicted = true;
+							inherited += min.item.getCount();
+						}
+					}
+					if (evicted)
+					{
+						node.item.addAndGetCount(inherited);
+						node.item.setError(inherited);
+					}
+				}
+				node.item.setNewItem(false);
+				rank(node, node.item.getCount());
+				return false;
+			}
 		}
-		else if (reachCapacity.get() || size.incrementAndGet() > capacity)
-		{
-			reachCapacity.set(true);
+	}
 
-			ScoredItem oldMinVal = minVal.getAndSet(value);
-			itemMap.remove(oldMinVal.getItem());
+	private void rank(Node<T> node, long count)
+	{
+		node.rank = new Rank(count, sequence.incrementAndGet());
+		ranks.put(node.rank, node);
+	}
 
-			while (oldMinVal.isNewItem())
+	private boolean takeExcess()
+	{
+		for (long e; (e = excess.get()) > 0; )
+		{
+			if (excess.compareAndSet(e, e - 1))
 			{
-				// Wait for the oldMinVal so its error and value are completely up to date.
-				// no thread.sleep here due to the overhead of calling it - the waiting time will be microseconds.
+				return true;
 			}
-			long count = oldMinVal.getCount();
-
-			value.addAndGetCount(count);
-			value.setError(count);
 		}
-		value.setNewItem(false);
-		minVal.set(getMinValue());
-
-		return val != incrementCount;
+		return false;
 	}
 
-	private ScoredItem getMinValue()
+	/**
+	 * Removes the item of lowest count.  Items still being added are not ranked yet, so with
+	 * more threads adding items at once than the summary holds there may be nothing to evict.
+	 * The summary then holds an item more than its capacity until a later new item evicts it,
+	 * and inherits its count as well as the lowest.
+	 *
+	 * @return the evicted item, or null if no item was ranked
+	 */
+	private Node<T> removeMin()
 	{
-		ScoredItem<T> minVal = null;
-		for (ScoredItem<T> entry : itemMap.values())
+		while (true)
 		{
-			if (minVal == null || (!entry.isNewItem() && entry.getCount() < minVal.getCount()))
+			Map.Entry<Rank, Node<T>> first = ranks.firstEntry();
+			if (first == null)
+			{
+				return null;
+			}
+			Node<T> min = first.getValue();
+			synchronized (min)
 			{
-				minVal = entry;
+				// otherwise it was incremented or evicted since, and the next one is the minimum
+				if (min.rank == first.getKey() && ranks.remove(first.getKey(), min))
+				{
+					min.evicted = true;
+					itemMap.remove(min.item.getItem(), min);
+					return min;
+				}
 			}
 		}
-		return minVal;
 	}
 
 	@Override
@@ -110,8 +190,9 @@ public class ConcurrentStreamSummary<T> implements ITopK<T>
 	{
 		StringBuilder sb = new StringBuilder();
 		sb.append("[");
-		for (ScoredItem entry : itemMap.values())
+		for (Node<T> node : itemMap.values())
 		{
+			ScoredItem<T> entry = node.item;
 			sb.append("("+ entry.getCount()  + ": " + entry.getItem() + ", e: " + entry.getError() + "),");
 		}
 		sb.deleteCharAt(sb.length() - 1);
@@ -131,16 +212,60 @@ public class ConcurrentStreamSummary<T> implements ITopK<T>
 		return toReturn;
 	}
 
+	/**
+	 * Sorts a snapshot of every item rather than walking the order, which items being
+	 * incremented move through and could be passed by, so that none is ever left out
+	 */
 	public List<ScoredItem<T>> peekWithScores(final int k)
 	{
-		List<ScoredItem<T>> values = new ArrayList<ScoredItem<T>>();
-		for (Map.Entry<T, ScoredItem> entry : itemMap.entrySet())
+		List<ScoredItem<T>> values = new ArrayList<ScoredItem<T>>(itemMap.size());
+		for (Node<T> node : itemMap.values())
 		{
-			ScoredItem value = entry.getValue();
-			values.add(new ScoredItem(value.getItem(), value.getCount(), value.getError()));
+			ScoredItem<T> value = node.item;
+			values.add(new ScoredItem<T>(value.getItem(), value.getCount(), value.getError()));
 		}
 		Collections.sort(values);
 		values = values.size() > k ? values.subList(0, k) : values;
 		return values;
 	}
+
+	/**
+	 * A tracked item and its current place in the order, both guarded by the node's lock
+	 */
+	private static class Node<T>
+	{
+		final ScoredItem<T> item;
+		Rank rank;
+		boolean evicted;
+
+		Node(ScoredItem<T> item)
+		{
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Orders items by count and then by when they last reached it, so each has a distinct key
+	 */
+	private static class Rank implements Comparable<Rank>
+	{
+		final long count;
+		final long sequence;
+
+		Rank(long count, long sequence)
+		{
+			this.count = count;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Rank o)
+		{
+			if (count != o.count)
+			{
+				return count < o.count ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
 }
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+/**
+ * The counters and buckets of a <i>Stream-Summary</i>, laid out as parallel arrays of
+ * primitives instead of linked nodes, so that once created it allocates nothing.
+ * <p/>
+ * Counters are numbered by slot, from 0 to the capacity, and buckets by id.  Each bucket
+ * links its counters from the oldest to the newest to join it, and the buckets are linked
+ * from the lowest count to the highest, mirroring the lists of {@link StreamSummary}
+ * exactly, so that offering the same stream leaves the counters in the same order.  Unused
+ * buckets are kept on a free list, there are never more than capacity + 1 in use.
+ * <p/>
+ * Increments that pass the next bucket up find their bucket through a treap of the buckets by
+ * count, kept in three more arrays that are only allocated the first time one does.
+ */
+final class CounterSlots
+{
+    private static final int NIL = -1;
+
+    /**
+     * Writes out the item of a slot, for {@link CounterSlots#toString(Items)}
+     */
+    interface Items
+    {
+        void append(StringBuilder sb, int slot);
+    }
+
+    final long[] counts;
+    final long[] errors;
+    private final int[] bucketOf;
+    /**
+     * Counters of the same bucket, towards the newest
+     */
+    private final int[] counterNext;
+    private final int[] counterPrev;
+
+    private final long[] bucketCount;
+    /**
+     * Oldest and newest counter of each bucket
+     */
+    private final int[] firstCounter;
+    private final int[] lastCounter;
+    /**
+     * Buckets towards higher counts
+     */
+    private final int[] bucketNext;
+    private final int[] bucketPrev;
+
+    private int minBucket = NIL;
+    private int maxBucket = NIL;
+
+    /**
+     * Children and heap priority of each bucket in the treap, null until it is needed
+     */
+    private int[] left;
+    private int[] right;
+    private int[] priority;
+    private int root = NIL;
+    private int seed = 0x2545f491;
+
+    /**
+     * Linked through bucketNext
+     */
+    private int freeBuckets;
+    private int size;
+
+    CounterSlots(int capacity)
+    {
+        counts = new long[capacity];
+        errors = new long[capacity];
+        bucketOf = new int[capacity];
+        counterNext = new int[capacity];
+        counterPrev = new int[capacity];
+
+        int buckets = capacity + 1;
+        bucketCount = new long[buckets];
+        firstCounter = new int[buckets];
+        lastCounter = new int[buckets];
+        bucketNext = new int[buckets];
+        bucketPrev = new int[buckets];
+        for (int b = 0; b < buckets; b++)
+        {
+            bucketNext[b] = b + 1 < buckets ? b + 1 : NIL;
+        }
+        freeBuckets = 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Takes the next slot, as the newest counter of the bucket of its count
+     *
+     * @return the slot
+     */
+    int add(long count)
+    {
+        int slot = size++;
+        counts[slot] = count;
+        errors[slot] = 0;
+        place(slot, NIL);
+        return slot;
+    }
+
+    /**
+     * Appends a counter at least as high as every other, in the order they were written out
+     *
+     * @return the slot
+     */
+    int append(long count, long error)
+    {
+        int slot = size++;
+        counts[slot] = count;
+        errors[slot] = error;
+        if (maxBucket == NIL || bucketCount[maxBucket] != count)
+        {
+            int bucket = newBucket(count);
+            linkAbove(maxBucket, bucket);
+            index(bucket);
+        }
+        attach(slot, maxBucket);
+        return slot;
+    }
+
+    /**
+     * Takes over the oldest counter of the lowest bucket for a new item, which inherits its
+     * count as error
+     *
+     * @return the slot
+     */
+    int recycle()
+    {
+        int slot = firstCounter[minBucket];
+        errors[slot] = counts[slot];
+        return slot;
+    }
+
+    /**
+     * Moves the counter to the newest end of the bucket of its new count
+     */
+    void increment(int slot, long incrementCount)
+    {
+        int bucket = bucketOf[slot];
+        detach(slot);
+        counts[slot] += incrementCount;
+
+        if (incrementCount == 0)
+        {
+            attach(slot, bucket);
+            return;
+        }
+        place(slot, bucket);
+
+        if (firstCounter[bucket] == NIL)
+        {
+            unlink(bucket);
+        }
+    }
+
+    /**
+     * Attaches the counter to the bucket of its count: the next one up from below if it has
+     * that count, a new one just above below if the count is under the next, and otherwise the
+     * one found through the treap, or a new one just above the highest bucket under the count
+     *
+     * @param below the bucket the counter was in, below its new count, or NIL if it is new
+     */
+    private void place(int slot, int below)
+    {
+        long count = counts[slot];
+        int next = below == NIL ? minBucket : bucketNext[below];
+
+        if (next != NIL && count > bucketCount[next])
+        {
+            if (left == null)
+            {
+                buildIndex();
+            }
+            below = floor(count);
+            next = bucketCount[below] == count ? below : bucketNext[below];
+        }
+
+        if (next == NIL || count != bucketCount[next])
+        {
+            next = newBucket(count);
+            linkAbove(below, next);
+            index(next);
+        }
+        attach(slot, next);
+    }
+
+    /**
+     * @return the slots of up to k counters from the highest count down, in the order
+     *         {@link StreamSummary#topK(int)} gives them
+     */
+    int[] topDown(int k)
+    {
+        int[] top = new int[Math.min(k, size)];
+        int i = 0;
+        for (int b = maxBucket; b != NIL && i < top.length; b = bucketPrev[b])
+        {
+            for (int c = firstCounter[b]; c != NIL && i < top.length; c = counterNext[c])
+            {
+                top[i++] = c;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @return the slots of every counter from the lowest count up, in the order
+     *         {@link StreamSummary#writeExternal(java.io.ObjectOutput)} writes them and
+     *         {@link #append(long, long)} takes them back
+     */
+    int[] bottomUp()
+    {
+        int[] all = new int[size];
+        int i = 0;
+        for (int b = minBucket; b != NIL; b = bucketNext[b])
+        {
+            for (int c = firstCounter[b]; c != NIL; c = counterNext[c])
+            {
+                all[i++] = c;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return the buckets and their counters as {@link StreamSummary#toString()} gives them
+     */
+    String toString(Items items)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int b = maxBucket; b != NIL; b = bucketPrev[b])
+        {
+            sb.append('{');
+            sb.append(bucketCount[b]);
+            sb.append(":[");
+            for (int c = firstCounter[b]; c != NIL; c = counterNext[c])
+            {
+                sb.append('{');
+                items.append(sb, c);
+                sb.append(':');
+                sb.append(errors[c]);
+                sb.append("},");
+            }
+            sb.deleteCharAt(sb.length() - 1);
+            sb.append("]},");
+        }
+        if (size > 0)
+        {
+            sb.deleteCharAt(sb.length() - 1);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    private int newBucket(long count)
+    {
+        int bucket = freeBuckets;
+        freeBuckets = bucketNext[bucket];
+        bucketCount[bucket] = count;
+        firstCounter[bucket] = NIL;
+        lastCounter[bucket] = NIL;
+        return bucket;
+    }
+
+    /**
+     * Links the bucket just above below, or at the bottom if below is NIL
+     */
+    private void linkAbove(int below, int bucket)
+    {
+        int above = below == NIL ? minBucket : bucketNext[below];
+        bucketPrev[bucket] = below;
+        bucketNext[bucket] = above;
+        if (below == NIL)
+        {
+            minBucket = bucket;
+        }
+        else
+        {
+            bucketNext[below] = bucket;
+        }
+        if (above == NIL)
+        {
+            maxBucket = bucket;
+        }
+        else
+        {
+            bucketPrev[above] = bucket;
+        }
+    }
+
+    private void unlink(int bucket)
+    {
+        if (left != null)
+        {
+            root = remove(root, bucketCount[bucket]);
+        }
+        int below = bucketPrev[bucket];
+        int above = bucketNext[bucket];
+        if (below == NIL)
+        {
+            minBucket = above;
+        }
+        else
+        {
+            bucketNext[below] = above;
+        }
+        if (above == NIL)
+        {
+            maxBucket = below;
+        }
+        else
+        {
+            bucketPrev[above] = below;
+        }
+        bucketNext[bucket] = freeBuckets;
+        freeBuckets = bucket;
+    }
+
+    private void attach(int slot, int bucket)
+    {
+        int last = lastCounter[bucket];
+        bucketOf[slot] = bucket;
+        counterPrev[slot] = last;
+        counterNext[slot] = NIL;
+        if (last == NIL)
+        {
+            firstCounter[bucket] = slot;
+        }
+        else
+        {
+            counterNext[last] = slot;
+        }
+        lastCounter[bucket] = slot;
+    }
+
+    private void detach(int slot)
+    {
+        int bucket = bucketOf[slot];
+        int prev = counterPrev[slot];
+        int next = counterNext[slot];
+        if (prev == NIL)
+        {
+            firstCounter[bucket] = next;
+        }
+        else
+        {
+            counterNext[prev] = next;
+        }
+        if (next == NIL)
+        {
+            lastCounter[bucket] = prev;
+        }
+        else
+        {
+            counterPrev[next] = prev;
+        }
+    }
+
+    private void buildIndex()
+    {
+        int buckets = bucketCount.length;
+        left = new int[buckets];
+        right = new int[buckets];
+        priority = new int[buckets];
+        for (int b = minBucket; b != NIL; b = bucketNext[b])
+        {
+            index(b);
+        }
+    }
+
+    /**
+     * Adds the bucket to the treap, if there is one, with a new random priority
+     */
+    private void index(int bucket)
+    {
+        if (left == null)
+        {
+            return;
+        }
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        priority[bucket] = seed;
+        left[bucket] = NIL;
+        right[bucket] = NIL;
+        root = insert(root, bucket);
+    }
+
+    /**
+     * @return the root of the subtree once the bucket is inserted into it, rotated up past
+     *         every node of lower priority
+     */
+    private int insert(int node, int bucket)
+    {
+        if (node == NIL)
+        {
+            return bucket;
+        }
+        if (bucketCount[bucket] < bucketCount[node])
+        {
+            int child = insert(left[node], bucket);
+            left[node] = child;
+            if (priority[child] > priority[node])
+            {
+                left[node] = right[child];
+                right[child] = node;
+                return child;
+            }
+        }
+        else
+        {
+            int child = insert(right[node], bucket);
+            right[node] = child;
+            if (priority[child] > priority[node])
+            {
+                right[node] = left[child];
+                left[child] = node;
+                return child;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the root of the subtree once the bucket of the count is removed from it
+     */
+    private int remove(int node, long count)
+    {
+        if (count < bucketCount[node])
+        {
+            left[node] = remove(left[node], count);
+        }
+        else if (count > bucketCount[node])
+        {
+            right[node] = remove(right[node], count);
+        }
+        else
+        {
+            node = join(left[node], right[node]);
+        }
+        return node;
+    }
+
+    /**
+     * @return the root of the two subtrees joined, every count in lower below every one in higher
+     */
+    private int join(int lower, int higher)
+    {
+        if (lower == NIL)
+        {
+            return higher;
+        }
+        if (higher == NIL)
+        {
+            return lower;
+        }
+        if (priority[lower] > priority[higher])
+        {
+            right[lower] = join(right[lower], higher);
+            return lower;
+        }
+        left[higher] = join(lower, left[higher]);
+        return higher;
+    }
+
+    /**
+     * @return the highest bucket whose count is not above the given count, NIL if there is none
+     */
+    private int floor(long count)
+    {
+        int floor = NIL;
+        for (int node = root; node != NIL; )
+        {
+            if (bucketCount[node] <= count)
+            {
+                floor = node;
+                node = right[node];
+            }
+            else
+            {
+                node = left[node];
+            }
+        }
+        return floor;
+    }
+}
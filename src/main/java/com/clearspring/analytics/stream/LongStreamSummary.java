@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+
+import com.clearspring.analytics.util.ExternalizableUtil;
+
+/**
+ * A {@link StreamSummary} of long items, such as numeric ids, that are never boxed: items are
+ * kept in an array beside the counters of {@link CounterSlots} and found through an open
+ * addressing index of their slots.  Each tracked item takes about 70 bytes, against about 120
+ * for a boxed item in a {@link StreamSummary}, and offering an item allocates nothing.
+ * <p/>
+ * Offering the same stream gives the same counters in the same order as a
+ * {@link StreamSummary} of the boxed items.  It serializes the same way, but with the items
+ * and counters written as primitives.
+ *
+ * @see IntStreamSummary
+ */
+public class LongStreamSummary implements Externalizable
+{
+    private static final long serialVersionUID = -7061039195018827157L;
+
+    private static final long SPREAD = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Items with their counts and errors, from the highest count down
+     */
+    public static class Counters
+    {
+        public final long[] items;
+        public final long[] counts;
+        public final long[] errors;
+
+        Counters(int size)
+        {
+            items = new long[size];
+            counts = new long[size];
+            errors = new long[size];
+        }
+
+        public int size()
+        {
+            return items.length;
+        }
+    }
+
+    protected int capacity;
+    private CounterSlots slots;
+    private long[] items;
+    /**
+     * slot + 1 of each item by hash, with linear probing, 0 where empty, at most half full
+     */
+    private int[] index;
+    private int shift;
+
+    /**
+     * @param capacity maximum size (larger capacities improve accuracy)
+     */
+    public LongStreamSummary(int capacity)
+    {
+        this.capacity = capacity;
+        allocate();
+    }
+
+    private void allocate()
+    {
+        slots = new CounterSlots(capacity);
+        items = new long[capacity];
+        int tableSize = 2;
+        while (tableSize < 2 * capacity)
+        {
+            tableSize <<= 1;
+        }
+        index = new int[tableSize];
+        shift = Long.SIZE - Integer.numberOfTrailingZeros(tableSize);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Algorithm: <i>Space-Saving</i>
+     *
+     * @param item stream element (<i>e</i>)
+     * @return false if item was already in the stream summary, true otherwise
+     */
+    public boolean offer(long item)
+    {
+        return offer(item, 1);
+    }
+
+    /**
+     * Algorithm: <i>Space-Saving</i>
+     *
+     * @param item stream element (<i>e</i>)
+     * @return false if item was already in the stream summary, true otherwise
+     */
+    public boolean offer(long item, int incrementCount)
+    {
+        int position = find(item);
+        int slot = index[position] - 1;
+        if (slot >= 0)
+        {
+            slots.increment(slot, incrementCount);
+            return false;
+        }
+
+        if (slots.size() < capacity)
+        {
+            slot = slots.add(incrementCount);
+        }
+        else
+        {
+            slot = slots.recycle();
+            remove(find(items[slot]));
+            position = find(item);
+            slots.increment(slot, incrementCount);
+        }
+        items[slot] = item;
+        index[position] = slot + 1;
+        return true;
+    }
+
+    private int home(long item)
+    {
+        return (int) ((item * SPREAD) >>> shift);
+    }
+
+    /**
+     * @return the position of the item in the index, or else of the empty entry it would take
+     */
+    private int find(long item)
+    {
+        int mask = index.length - 1;
+        int position = home(item);
+        for (int entry; (entry = index[position]) != 0; position = (position + 1) & mask)
+        {
+            if (items[entry - 1] == item)
+            {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Empties the entry at the position, shifting back later entries of the same run that
+     * could not be found past the gap otherwise
+     */
+    private void remove(int position)
+    {
+        int mask = index.length - 1;
+        int gap = position;
+        for (int next = (gap + 1) & mask; index[next] != 0; next = (next + 1) & mask)
+        {
+            int home = home(items[index[next] - 1]);
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                index[gap] = index[next];
+                gap = next;
+            }
+        }
+        index[gap] = 0;
+    }
+
+    /**
+     * @return the count of the item, 0 if it is not tracked
+     */
+    public long getCount(long item)
+    {
+        int slot = index[find(item)] - 1;
+        return slot < 0 ? 0 : slots.counts[slot];
+    }
+
+    /**
+     * @return the top k items, from the highest count down
+     */
+    public long[] peek(int k)
+    {
+        return topK(k).items;
+    }
+
+    /**
+     * @return the top k items with their counts and errors, from the highest count down
+     */
+    public Counters topK(int k)
+    {
+        int[] top = slots.topDown(k);
+        Counters topK = new Counters(top.length);
+        for (int i = 0; i < top.length; i++)
+        {
+            topK.items[i] = items[top[i]];
+            topK.counts[i] = slots.counts[top[i]];
+            topK.errors[i] = slots.errors[top[i]];
+        }
+        return topK;
+    }
+
+    /**
+     * @return number of items stored
+     */
+    public int size()
+    {
+        return slots.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return slots.toString(new CounterSlots.Items()
+        {
+            @Override
+            public void append(StringBuilder sb, int slot)
+            {
+                sb.append(items[slot]);
+            }
+        });
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+    {
+        this.capacity = in.readInt();
+        allocate();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++)
+        {
+            long item = in.readLong();
+            long count = in.readLong();
+            long error = in.readLong();
+            int slot = slots.append(count, error);
+            items[slot] = item;
+            index[find(item)] = slot + 1;
+        }
+    }
+
+    /**
+     * Writes the capacity and size, then the item, count and error of each counter from the
+     * lowest count up
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeInt(this.capacity);
+        out.writeInt(this.size());
+        for (int c : slots.bottomUp())
+        {
+            out.writeLong(items[c]);
+            out.writeLong(slots.counts[c]);
+            out.writeLong(slots.errors[c]);
+        }
+    }
+
+    /**
+     * For de-serialization
+     */
+    public LongStreamSummary()
+    {
+    }
+
+    /**
+     * For de-serialization
+     *
+     * @param bytes
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public LongStreamSummary(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        fromBytes(bytes);
+    }
+
+    public void fromBytes(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    public byte[] toBytes() throws IOException
+    {
+        return ExternalizableUtil.toBytes(this);
+    }
+}
@@ -23,8 +23,13 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.TreeMap;
 
 import com.clearspring.analytics.util.DoublyLinkedList;
 import com.clearspring.analytics.util.ExternalizableUtil;
@@ -41,6 +46,8 @@ import com.clearspring.analytics.util.Pair;
  */
 public class StreamSummary<T> implements ITopK<T>, Externalizable
 {
+    private static final long serialVersionUID = 4298907540325224522L;
+
     protected class Bucket
     {
         protected DoublyLinkedList<Counter<T>> counterList;
@@ -58,6 +65,12 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
     private HashMap<T, ListNode2<Counter<T>>> counterMap;
     protected DoublyLinkedList<Bucket> bucketList;
 
+    /**
+     * The buckets by count, to place counters that pass the next bucket up in O(log buckets).
+     * Null until an increment first does, so counting one at a time never pays to keep it.
+     */
+    private TreeMap<Long, ListNode2<Bucket>> bucketIndex;
+
     /**
      * @param capacity maximum size (larger capacities improve accuracy)
      */
@@ -120,7 +133,10 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
 
             if (size() < capacity)
             {
-                counterNode = bucketList.enqueue(new Bucket(0)).getValue().counterList.add(new Counter<T>(bucketList.tail(), item));
+                Counter<T> counter = new Counter<T>(null, item);
+                counter.count = incrementCount;
+                counterNode = new ListNode2<Counter<T>>(counter);
+                placeCounter(counterNode, null);
             }
             else
             {
@@ -131,11 +147,14 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
                 counterMap.remove(droppedItem);
                 counter.item = item;
                 counter.error = min.count;
+                incrementCounter(counterNode, incrementCount);
             }
             counterMap.put(item, counterNode);
         }
-
-        incrementCounter(counterNode, incrementCount);
+        else
+        {
+            incrementCounter(counterNode, incrementCount);
+        }
 
         return new Pair<Boolean, T>(isNewItem, droppedItem);
     }
@@ -145,12 +164,52 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
         Counter<T> counter = counterNode.getValue();       // count_i
         ListNode2<Bucket> bucketNode = counter.bucketNode;
         Bucket bucket = bucketNode.getValue();         // Let Bucket_i be the bucket of count_i
-        ListNode2<Bucket> bucketNodeNext = bucketNode.getNext();
-        Bucket bucketNext = bucketNodeNext == null ? null : bucketNodeNext.getValue(); // Let Bucket_i^+ be Bucket_i's neighbor of larger value
         bucket.counterList.remove(counterNode);            // Detach count_i from Bucket_i's child-list
         counter.count = counter.count + incrementCount;
 
+        if (incrementCount == 0)
+        {
+            bucket.counterList.add(counterNode);
+            return;
+        }
+        placeCounter(counterNode, bucketNode);
+
+        //Cleaning up
+        if (bucket.counterList.isEmpty())           // If Bucket_i's child-list is empty
+        {
+            removeBucket(bucketNode);              // Detach Bucket_i from the Stream-Summary
+        }
+    }
+
+    /**
+     * Attaches the counter to the bucket of its count, creating it if there is none
+     *
+     * @param bucketNode the bucket the counter was in, below its new count, or null if it is new
+     */
+    private void placeCounter(ListNode2<Counter<T>> counterNode, ListNode2<Bucket> bucketNode)
+    {
+        Counter<T> counter = counterNode.getValue();
+        ListNode2<Bucket> bucketNodeNext = bucketNode == null ? bucketList.tail() : bucketNode.getNext();
+        Bucket bucketNext = bucketNodeNext == null ? null : bucketNodeNext.getValue(); // Let Bucket_i^+ be Bucket_i's neighbor of larger value
+
         // Finding the right bucket for count_i
+        if (bucketNext != null && counter.count > bucketNext.count)
+        {
+            // a weighted increment passed Bucket_i^+, start from the highest bucket not above count_i
+            if (bucketIndex == null)
+            {
+                indexBuckets();
+            }
+            bucketNode = bucketIndex.floorEntry(counter.count).getValue();
+            bucketNodeNext = bucketNode.getNext();
+            bucketNext = bucketNodeNext == null ? null : bucketNodeNext.getValue();
+            if (bucketNode.getValue().count == counter.count)
+            {
+                bucketNodeNext = bucketNode;
+                bucketNext = bucketNode.getValue();
+            }
+        }
+
         if (bucketNext != null && counter.count == bucketNext.count)
         {
             bucketNext.counterList.add(counterNode);       // Attach count_i to Bucket_i^+'s child-list
@@ -160,15 +219,128 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
             bucketNext = new Bucket(counter.count);        // Create a new Bucket Bucket_new
             // Assign Bucket_new the value of count_i
             bucketNext.counterList.add(counterNode);       // Attach count_i to Bucket_new's child-list
-            bucketNodeNext = bucketList.addAfter(bucketNode, bucketNext);  // Insert Bucket_new after Bucket_i
+            // Insert Bucket_new after Bucket_i
+            bucketNodeNext = bucketNode == null ? bucketList.enqueue(bucketNext) : bucketList.addAfter(bucketNode, bucketNext);
+            if (bucketIndex != null)
+            {
+                bucketIndex.put(bucketNext.count, bucketNodeNext);
+            }
         }
 
         counter.bucketNode = bucketNodeNext;
+    }
 
-        //Cleaning up
-        if (bucket.counterList.isEmpty())           // If Bucket_i's child-list is empty
+    private void indexBuckets()
+    {
+        bucketIndex = new TreeMap<Long, ListNode2<Bucket>>();
+        for (ListNode2<Bucket> bNode = bucketList.tail(); bNode != null; bNode = bNode.getNext())
+        {
+            bucketIndex.put(bNode.getValue().count, bNode);
+        }
+    }
+
+    private void removeBucket(ListNode2<Bucket> bucketNode)
+    {
+        bucketList.remove(bucketNode);
+        if (bucketIndex != null)
+        {
+            bucketIndex.remove(bucketNode.getValue().count);
+        }
+    }
+
+    /**
+     * Combines summaries of disjoint parts of a stream, such as its partitions, into a summary
+     * of the whole, following the merge of <i>Space-Saving</i> in
+     * <i>Mergeable Summaries</i> by Agarwal, Cormode, Huang, Phillips, Wei and Yi.
+     * <p/>
+     * The count and error of each item are summed over the summaries.  A summary that does not
+     * track an item adds its lowest count to both if it is full, since the item may have been
+     * evicted with up to that count, and nothing otherwise.  So each count is still at most
+     * its error above the true count, and the capacity items with the highest counts are kept.
+     *
+     * @param capacity maximum size of the merged summary
+     */
+    public static <T> StreamSummary<T> merge(int capacity, Iterable<StreamSummary<T>> summaries)
+    {
+        StreamSummary<T> merged = new StreamSummary<T>(capacity);
+        merged.combine(summaries);
+        return merged;
+    }
+
+    /**
+     * Merges the other summary into this one, in place and keeping this capacity, see
+     * {@link #merge(int, Iterable)}
+     */
+    @SuppressWarnings("unchecked")
+    public void addAll(StreamSummary<T> other)
+    {
+        combine(Arrays.asList(this, other));
+    }
+
+    private void combine(Iterable<StreamSummary<T>> summaries)
+    {
+        // counters hold the sums over the summaries tracking each item, less their lowest counts
+        LinkedHashMap<T, Counter<T>> combined = new LinkedHashMap<T, Counter<T>>();
+        long minTotal = 0;
+        for (StreamSummary<T> summary : summaries)
+        {
+            long min = summary.size() == 0 || summary.size() < summary.capacity ? 0 : summary.bucketList.first().count;
+            minTotal += min;
+            for (ListNode2<Bucket> bNode = summary.bucketList.head(); bNode != null; bNode = bNode.getPrev())
+            {
+                for (Counter<T> c : bNode.getValue().counterList)
+                {
+                    Counter<T> counter = combined.get(c.item);
+                    if (counter == null)
+                    {
+                        counter = new Counter<T>(null, c.item);
+                        combined.put(c.item, counter);
+                    }
+                    counter.count += c.count - min;
+                    counter.error += c.error - min;
+                }
+            }
+        }
+
+        List<Counter<T>> counters = new ArrayList<Counter<T>>(combined.values());
+        for (Counter<T> c : counters)
+        {
+            c.count += minTotal;
+            c.error += minTotal;
+        }
+        // stable, so items of equal count keep the order they were first seen in
+        Collections.sort(counters, new Comparator<Counter<T>>()
+        {
+            @Override
+            public int compare(Counter<T> a, Counter<T> b)
+            {
+                return a.count > b.count ? -1 : a.count < b.count ? 1 : 0;
+            }
+        });
+        if (counters.size() > capacity)
+        {
+            counters = counters.subList(0, capacity);
+        }
+
+        counterMap = new HashMap<T, ListNode2<Counter<T>>>();
+        bucketList = new DoublyLinkedList<Bucket>();
+        bucketIndex = null;
+        for (int end = counters.size(); end > 0; )
         {
-            bucketList.remove(bucketNode);         // Detach Bucket_i from the Stream-Summary
+            long count = counters.get(end - 1).count;
+            int start = end - 1;
+            while (start > 0 && counters.get(start - 1).count == count)
+            {
+                start--;
+            }
+            Bucket bucket = new Bucket(count);
+            ListNode2<Bucket> bucketNode = bucketList.add(bucket);
+            for (Counter<T> c : counters.subList(start, end))
+            {
+                c.bucketNode = bucketNode;
+                counterMap.put(c.item, bucket.counterList.add(c));
+            }
+            end = start;
         }
     }
 
@@ -259,6 +431,7 @@ public class StreamSummary<T> implements ITopK<T>, Externalizable
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
     {
         this.bucketList = new DoublyLinkedList<Bucket>();
+        this.bucketIndex = null;
         this.capacity = in.readInt();
 
         int size = in.readInt();
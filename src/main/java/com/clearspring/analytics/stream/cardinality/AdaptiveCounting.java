@@ -66,11 +66,15 @@ public class AdaptiveCounting extends LogLog
     @Override
     public boolean offer(Object o)
     {
-        boolean modified = false;
+        return offerHashed(Lookup3Hash.lookup3ycs64(o.toString()));
+    }
 
-        long x = Lookup3Hash.lookup3ycs64(o.toString());
-        int j = (int) (x >>> (Long.SIZE - k));
-        byte r = (byte) (Long.numberOfLeadingZeros((x << k) | (1 << (k - 1))) + 1);
+    /**
+     * Also counts the buckets that stop being empty, for every way of offering a value.
+     */
+    @Override
+    protected boolean updateRegister(int j, byte r)
+    {
         if (M[j] < r)
         {
             Rsum += r - M[j];
@@ -79,10 +83,9 @@ public class AdaptiveCounting extends LogLog
                 b_e--;
             }
             M[j] = r;
-            modified = true;
+            return true;
         }
-
-        return modified;
+        return false;
     }
 
     @Override
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The raw estimates and biases HyperLogLogPlus uses to correct its estimates at one precision,
+ * taken from google's bias correction data set:
+ * https://docs.google.com/document/d/1gyjfMHy43U9OWBXxfaeG-3MjGzejW1dlpyMwEYAAWEI/view?fullscreen#
+ * <p/>
+ * The tables of each precision are read from a binary resource the first time they are used
+ * and then shared by every estimator of that precision, so a process that only uses one
+ * precision only ever loads one.  The resource holds, for each precision from
+ * {@link #MIN_PRECISION} to {@link #MAX_PRECISION} in turn, the number of entries as an int,
+ * the raw estimates and then the biases, as big endian doubles.
+ */
+final class BiasCorrection
+{
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+
+    private static final String RESOURCE = "hyperloglogplus-bias.bin";
+
+    private static final int NEAREST_NEIGHBORS = 6;
+
+    private static final AtomicReferenceArray<BiasCorrection> tables =
+            new AtomicReferenceArray<BiasCorrection>(MAX_PRECISION - MIN_PRECISION + 1);
+
+    private final double[] rawEstimates;
+    private final double[] biases;
+
+    /**
+     * Indexes of rawEstimates ordered by estimate.  A few rows of the published data are not
+     * strictly increasing, so the nearest neighbor search walks this permutation rather than
+     * the rows themselves.
+     */
+    private final int[] order;
+
+    private BiasCorrection(double[] rawEstimates, double[] biases)
+    {
+        this.rawEstimates = rawEstimates;
+        this.biases = biases;
+        order = new int[rawEstimates.length];
+        // the rows are almost sorted already, so insertion sort is effectively linear
+        for (int i = 0; i < order.length; i++)
+        {
+            int j = i - 1;
+            while (j >= 0 && rawEstimates[order[j]] > rawEstimates[i])
+            {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+    }
+
+    /**
+     * @param p a precision from {@link #MIN_PRECISION} to {@link #MAX_PRECISION}
+     * @return the tables for p, loading them if this is the first time they are used
+     */
+    static BiasCorrection forPrecision(int p)
+    {
+        BiasCorrection table = tables.get(p - MIN_PRECISION);
+        if (table == null)
+        {
+            // racing threads may each load the tables, but only one copy is kept
+            tables.compareAndSet(p - MIN_PRECISION, null, load(p));
+            table = tables.get(p - MIN_PRECISION);
+        }
+        return table;
+    }
+
+    private static BiasCorrection load(int p)
+    {
+        InputStream resource = BiasCorrection.class.getResourceAsStream(RESOURCE);
+        if (resource == null)
+        {
+            throw new IllegalStateException("Missing resource " + RESOURCE);
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(resource));
+            try
+            {
+                for (int precision = MIN_PRECISION; precision < p; precision++)
+                {
+                    skipFully(in, in.readInt() * 16L);
+                }
+                double[] rawEstimates = new double[in.readInt()];
+                double[] biases = new double[rawEstimates.length];
+                for (int i = 0; i < rawEstimates.length; i++)
+                {
+                    rawEstimates[i] = in.readDouble();
+                }
+                for (int i = 0; i < biases.length; i++)
+                {
+                    biases[i] = in.readDouble();
+                }
+                return new BiasCorrection(rawEstimates, biases);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException
+    {
+        while (n > 0)
+        {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+            {
+                throw new IOException("Truncated resource " + RESOURCE);
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Averages the bias of the six raw estimates nearest to <code>estimate</code>.  Neighbors
+     * are taken in order of increasing squared distance and, as with the map this replaced,
+     * estimates at exactly the same distance count as one neighbor, the last in the row.
+     */
+    double estimateBias(double estimate)
+    {
+        // find the first raw estimate above this one, the walk then grows outwards from there
+        int lo = 0;
+        int hi = order.length;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (rawEstimates[order[mid]] <= estimate)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        int left = lo - 1;
+        int right = lo;
+
+        double biasTotal = 0.0d;
+        int neighbors = 0;
+        while (neighbors < NEAREST_NEIGHBORS && (left >= 0 || right < order.length))
+        {
+            double leftDistance = left >= 0 ? distance(estimate, rawEstimates[order[left]]) : Double.POSITIVE_INFINITY;
+            double rightDistance = right < order.length ? distance(estimate, rawEstimates[order[right]]) : Double.POSITIVE_INFINITY;
+            double nearest = Math.min(leftDistance, rightDistance);
+
+            int index = -1;
+            while (left >= 0 && Double.compare(distance(estimate, rawEstimates[order[left]]), nearest) == 0)
+            {
+                index = Math.max(index, order[left--]);
+            }
+            while (right < order.length && Double.compare(distance(estimate, rawEstimates[order[right]]), nearest) == 0)
+            {
+                index = Math.max(index, order[right++]);
+            }
+            biasTotal += biases[index];
+            neighbors++;
+        }
+        // short rows pad the neighbors with the first entry
+        for (; neighbors < NEAREST_NEIGHBORS; neighbors++)
+        {
+            biasTotal += biases[0];
+        }
+        return biasTotal / NEAREST_NEIGHBORS;
+    }
+
+    private static double distance(double estimate, double rawEstimate)
+    {
+        return Math.pow(estimate - rawEstimate, 2);
+    }
+
+    /** exposed for testing */
+    double[] getRawEstimates()
+    {
+        return rawEstimates.clone();
+    }
+
+    /** exposed for testing */
+    double[] getBiases()
+    {
+        return biases.clone();
+    }
+}
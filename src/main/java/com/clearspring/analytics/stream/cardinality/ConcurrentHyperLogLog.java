@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A {@link HyperLogLog} that any number of threads can offer to and read from at once
+ * without locking.
+ * <p/>
+ * The registers are packed exactly as in a {@link RegisterSet}, six to a word, and each word
+ * is updated with a compare and set, so an offer only retries when another thread changed
+ * the same word in the meantime.  getBytes produces the HyperLogLog format, so the result
+ * can be read back with {@link HyperLogLog.Builder#build(byte[])}.
+ * <p/>
+ * Registers only ever grow, so reading every word once gives a consistent view: each
+ * register holds a value it really had while the read was in progress, and every offer
+ * that completed before the read started is included.  cardinality, getBytes and merge all
+ * work from such a single pass.
+ */
+public class ConcurrentHyperLogLog implements ICardinality
+{
+    private final AtomicIntegerArray words;
+    private final int log2m;
+    private final int count;
+    private final double alphaMM;
+
+    /**
+     * Create a new instance using the specified standard deviation, see
+     * {@link HyperLogLog#HyperLogLog(double)}.
+     */
+    public ConcurrentHyperLogLog(double rsd)
+    {
+        this(HyperLogLog.log2m(rsd));
+    }
+
+    /**
+     * Create a new instance, see {@link HyperLogLog#HyperLogLog(int)}.
+     */
+    public ConcurrentHyperLogLog(int log2m)
+    {
+        this.log2m = log2m;
+        this.count = (int) Math.pow(2, log2m);
+        this.words = new AtomicIntegerArray(RegisterSet.getSizeForCount(count));
+        this.alphaMM = HyperLogLog.alphaMM(log2m);
+    }
+
+    /**
+     * Create a new instance holding the registers of <code>hll</code>.
+     */
+    public ConcurrentHyperLogLog(HyperLogLog hll)
+    {
+        this(hll.getLog2m());
+        addAll(hll.getRegisterSet().bits());
+    }
+
+    @Override
+    public boolean offerHashed(long hashedValue)
+    {
+        final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+        final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(int hashedValue)
+    {
+        final int j = hashedValue >>> (Integer.SIZE - log2m);
+        final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashedLongs, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            final long hashedValue = hashedLongs[i];
+            final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+            final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= updateIfGreater(j, r);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int[] hashedInts, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            final int hashedValue = hashedInts[i];
+            final int j = hashedValue >>> (Integer.SIZE - log2m);
+            final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= updateIfGreater(j, r);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offer(Object o)
+    {
+        return offerHashed(MurmurHash.hash(o));
+    }
+
+    private boolean updateIfGreater(int position, int value)
+    {
+        int bucket = position / RegisterSet.LOG2_BITS_PER_WORD;
+        int shift = RegisterSet.REGISTER_SIZE * (position - (bucket * RegisterSet.LOG2_BITS_PER_WORD));
+        int mask = 0x1f << shift;
+        // a register holds at most 31, larger run lengths must not spill into the next one
+        value = Math.min(value, 0x1f);
+
+        while (true)
+        {
+            int word = words.get(bucket);
+            if (((word & mask) >>> shift) >= value)
+            {
+                return false;
+            }
+            if (words.compareAndSet(bucket, word, (word & ~mask) | (value << shift)))
+            {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long cardinality()
+    {
+        double registerSum = 0;
+        double zeros = 0.0;
+        int position = 0;
+        for (int bucket = 0; position < count; bucket++)
+        {
+            int word = words.get(bucket);
+            for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD && position < count; j++, position++)
+            {
+                int val = (word >>> (RegisterSet.REGISTER_SIZE * j)) & 0x1f;
+                registerSum += 1.0 / (1 << val);
+                if (val == 0)
+                {
+                    zeros++;
+                }
+            }
+        }
+        return HyperLogLog.estimate(alphaMM, count, registerSum, zeros);
+    }
+
+    public int getLog2m()
+    {
+        return log2m;
+    }
+
+    @Override
+    public int sizeof()
+    {
+        return words.length() * 4;
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        dos.writeInt(log2m);
+        dos.writeInt(words.length() * 4);
+        for (int bucket = 0; bucket < words.length(); bucket++)
+        {
+            dos.writeInt(words.get(bucket));
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return a HyperLogLog holding a snapshot of the registers
+     */
+    public HyperLogLog toHyperLogLog()
+    {
+        return new HyperLogLog(log2m, new RegisterSet(count, snapshot()));
+    }
+
+    private int[] snapshot()
+    {
+        int[] copy = new int[words.length()];
+        for (int bucket = 0; bucket < copy.length; bucket++)
+        {
+            copy[bucket] = words.get(bucket);
+        }
+        return copy;
+    }
+
+    /**
+     * Add all the elements of the other set to this set.  Safe to call while other threads
+     * offer to either estimator.
+     *
+     * @param other A compatible instance (same log2m)
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(ConcurrentHyperLogLog other) throws CardinalityMergeException
+    {
+        if (this.sizeof() != other.sizeof())
+        {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+        addAll(other.snapshot());
+    }
+
+    /**
+     * Add all the elements of the other set to this set.  Safe to call while other threads
+     * offer to this estimator.
+     *
+     * @param other A compatible instance (same log2m)
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(HyperLogLog other) throws CardinalityMergeException
+    {
+        if (this.sizeof() != other.sizeof())
+        {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+        addAll(other.getRegisterSet().bits());
+    }
+
+    private void addAll(int[] otherWords)
+    {
+        for (int bucket = 0; bucket < otherWords.length; bucket++)
+        {
+            while (true)
+            {
+                int word = words.get(bucket);
+                int max = RegisterSet.max(word, otherWords[bucket]);
+                if (max == word || words.compareAndSet(bucket, word, max))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new ConcurrentHyperLogLog for the union of this estimator and the others,
+     *         which may be HyperLogLog or ConcurrentHyperLogLog instances of the same size
+     */
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException
+    {
+        ConcurrentHyperLogLog merged = new ConcurrentHyperLogLog(log2m);
+        merged.addAll(this);
+
+        if (estimators == null)
+        {
+            return merged;
+        }
+
+        for (ICardinality estimator : estimators)
+        {
+            if (estimator instanceof ConcurrentHyperLogLog)
+            {
+                merged.addAll((ConcurrentHyperLogLog) estimator);
+            }
+            else if (estimator instanceof HyperLogLog)
+            {
+                merged.addAll((HyperLogLog) estimator);
+            }
+            else
+            {
+                throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different class");
+            }
+        }
+
+        return merged;
+    }
+}
@@ -16,8 +16,11 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.CompressedLongSet;
 import com.clearspring.analytics.util.ExternalizableUtil;
 import com.clearspring.analytics.util.IBuilder;
+import com.clearspring.analytics.util.LongHashSet;
 
 import java.io.*;
 import java.util.*;
@@ -30,16 +33,37 @@ import java.util.*;
  * a specified "tipping point" cardinality is reached.
  * </p>
  * <p/>
+ * <p>
+ * In hashed mode only the 64 bit hashes of the elements are counted, in a primitive set,
+ * instead of the elements themselves, see
+ * {@link #CountThenEstimate(int, IBuilder, boolean)}.
+ * </p>
+ * <p/>
+ * <p>
+ * Past an optional "compression point" the exact count moves to a compressed set of hashes,
+ * which stays exact and cheap to merge up to a tipping point far above what a plain set
+ * allows, see {@link #CountThenEstimate(int, IBuilder, boolean, int)}.
+ * </p>
+ * <p/>
  * Currently supports serialization with LinearCounting or AdaptiveCounting
  */
 public class CountThenEstimate implements ICardinality, Externalizable
 {
+    private static final long serialVersionUID = -7176468421159568775L;
+
     protected final static byte LC = 1;
     protected final static byte AC = 2;
     protected final static byte HLC = 3;
     protected final static byte LLC = 4;
     protected final static byte HLPC = 5;
 
+    /**
+     * States of the exact count, as serialized
+     */
+    private final static byte OBJECTS = 0;
+    private final static byte HASHES = 1;
+    private final static byte COMPRESSED = 2;
+
     /**
      * Cardinality after which exact counting gives way to estimation
      */
@@ -63,10 +87,33 @@ public class CountThenEstimate implements ICardinality, Externalizable
 
     /**
      * Cardinality counter
-     * Null after tipping point is reached
+     * Null after tipping point is reached, and in hashed mode
      */
     protected Set<Object> counter;
 
+    /**
+     * Cardinality counter in hashed mode, of the 64 bit hashes of the elements
+     * Null after tipping point is reached, and unless in hashed mode
+     */
+    protected LongHashSet hashes;
+
+    /**
+     * True in hashed mode, also after tipping, when elements are offered to the estimator by
+     * their 64 bit hash
+     */
+    protected boolean hashed;
+
+    /**
+     * Cardinality after which exact counting moves to the compressed set, 0 if it never does
+     */
+    protected int compressionPoint;
+
+    /**
+     * Compressed cardinality counter, of the 64 bit hashes of the elements
+     * Null until the compression point is reached, and after the tipping point is reached
+     */
+    protected CompressedLongSet compressed;
+
     /**
      * Default constructor
      * Exact counts up to 1000, estimation done with default Builder
@@ -81,10 +128,62 @@ public class CountThenEstimate implements ICardinality, Externalizable
      * @param builder      Factory for instantiating estimator after the tipping point is reached
      */
     public CountThenEstimate(int tippingPoint, IBuilder<ICardinality> builder)
+    {
+        this(tippingPoint, builder, false);
+    }
+
+    /**
+     * In hashed mode elements are counted by their 64 bit {@link MurmurHash#hash64(Object)},
+     * kept in a primitive set, instead of being kept themselves, and are offered to the
+     * estimator by that hash with {@link ICardinality#offerHashed(long)}, before and after
+     * tipping.  Tipping hands the hashes to the estimator as a single batch.  Elements are no
+     * longer kept alive or boxed, the exact phase takes 11 to 22 bytes per element and
+     * serializes to 8, and pre-hashed 64 bit values can be offered before tipping.
+     * <p/>
+     * The count is exact up to hash collisions, which for 64 bit hashes are negligible at any
+     * tipping point.  Since the estimator sees hashes rather than elements, an estimator that
+     * tipped in one mode cannot be merged with estimators in the other, see
+     * {@link #mergeEstimators(CountThenEstimate...)}.
+     *
+     * @param tippingPoint Cardinality at which exact counting gives way to estimation
+     * @param builder      Factory for instantiating estimator after the tipping point is reached
+     * @param hashed       whether to count 64 bit hashes rather than the elements
+     */
+    public CountThenEstimate(int tippingPoint, IBuilder<ICardinality> builder, boolean hashed)
+    {
+        this(tippingPoint, builder, hashed, 0);
+    }
+
+    /**
+     * Once the exact count passes the compression point the hashes of the elements move to a
+     * {@link CompressedLongSet}, where they take 7 to 9 bytes each, and where merging two
+     * estimators is a linear merge of their sorted hashes.  The count stays exact up to the
+     * tipping point, so with a compression point in the thousands the tipping point can be
+     * raised to hundreds of thousands for about the memory of an estimator.  From the
+     * compression point on the estimator is in hashed mode, as in
+     * {@link #CountThenEstimate(int, IBuilder, boolean)}.
+     *
+     * @param tippingPoint     Cardinality at which exact counting gives way to estimation
+     * @param builder          Factory for instantiating estimator after the tipping point is reached
+     * @param hashed           whether to count 64 bit hashes rather than the elements
+     * @param compressionPoint Cardinality at which exact counting moves to a compressed set,
+     *                         0 to never compress, and not compressing either if not below
+     *                         tippingPoint
+     */
+    public CountThenEstimate(int tippingPoint, IBuilder<ICardinality> builder, boolean hashed, int compressionPoint)
     {
         this.tippingPoint = tippingPoint;
         this.builder = builder;
-        this.counter = new HashSet<Object>();
+        this.hashed = hashed;
+        this.compressionPoint = compressionPoint;
+        if (hashed)
+        {
+            this.hashes = new LongHashSet();
+        }
+        else
+        {
+            this.counter = new HashSet<Object>();
+        }
     }
 
     /**
@@ -98,7 +197,8 @@ public class CountThenEstimate implements ICardinality, Externalizable
     {
         readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
 
-        if (!tipped && builder.sizeof() <= bytes.length)
+        // the compressed tier is meant to stay exact past the size of the estimator
+        if (!tipped && compressionPoint == 0 && builder.sizeof() <= bytes.length)
         {
             tip();
         }
@@ -111,24 +211,118 @@ public class CountThenEstimate implements ICardinality, Externalizable
         {
             return estimator.cardinality();
         }
-        return counter.size();
+        return exactSize();
+    }
+
+    private int exactSize()
+    {
+        if (compressed != null)
+        {
+            return compressed.size();
+        }
+        return hashed ? hashes.size() : counter.size();
     }
 
+    /**
+     * Only supported in hashed mode or once tipped; exact counting otherwise needs the
+     * original stream elements.
+     */
     @Override
     public boolean offerHashed(long hashedLong)
     {
-        throw new UnsupportedOperationException();
+        if (hashed && !tipped)
+        {
+            return addHash(hashedLong);
+        }
+        return tippedEstimator().offerHashed(hashedLong);
+    }
+
+    private boolean addHash(long hashedLong)
+    {
+        if (!(compressed != null ? compressed.add(hashedLong) : hashes.add(hashedLong)))
+        {
+            return false;
+        }
+        grow();
+        return true;
     }
 
+    /**
+     * Moves on to the next tier once the exact count outgrows its current one
+     */
+    private void grow()
+    {
+        int size = exactSize();
+        if (size > tippingPoint)
+        {
+            tip();
+        }
+        else if (compressed == null && compressionPoint > 0 && size > compressionPoint)
+        {
+            compress();
+        }
+    }
+
+    /**
+     * Only supported once tipped; exact counting needs the original stream elements, or in
+     * hashed mode 64 bit hashes.
+     */
     @Override
     public boolean offerHashed(int hashedInt)
     {
-        throw new UnsupportedOperationException();
+        return tippedEstimator().offerHashed(hashedInt);
+    }
+
+    /**
+     * Only supported in hashed mode or once tipped, the whole batch is then handed to the
+     * estimator.
+     */
+    @Override
+    public boolean offerHashed(long[] hashedLongs, int offset, int length)
+    {
+        if (hashed && !tipped)
+        {
+            boolean modified = false;
+            int i = offset;
+            for (; i < offset + length && !tipped; i++)
+            {
+                modified |= addHash(hashedLongs[i]);
+            }
+            if (i < offset + length)
+            {
+                modified |= estimator.offerHashed(hashedLongs, i, offset + length - i);
+            }
+            return modified;
+        }
+        return tippedEstimator().offerHashed(hashedLongs, offset, length);
+    }
+
+    /**
+     * Only supported once tipped, the whole batch is then handed to the estimator.
+     */
+    @Override
+    public boolean offerHashed(int[] hashedInts, int offset, int length)
+    {
+        return tippedEstimator().offerHashed(hashedInts, offset, length);
+    }
+
+    private ICardinality tippedEstimator()
+    {
+        if (!tipped)
+        {
+            throw new UnsupportedOperationException("Hashed values cannot be counted exactly before the tipping point");
+        }
+        return estimator;
     }
 
     @Override
     public boolean offer(Object o)
     {
+        if (hashed)
+        {
+            return offerHashed(MurmurHash.hash64(o));
+        }
+
         boolean modified = false;
 
         if (tipped)
@@ -140,10 +334,7 @@ public class CountThenEstimate implements ICardinality, Externalizable
             if (counter.add(o))
             {
                 modified = true;
-                if (counter.size() > tippingPoint)
-                {
-                    tip();
-                }
+                grow();
             }
         }
 
@@ -160,6 +351,53 @@ public class CountThenEstimate implements ICardinality, Externalizable
         return -1;
     }
 
+    /**
+     * Switch from exact counting to a compressed set of hashes, and to hashed mode
+     */
+    private void compress()
+    {
+        compressed = new CompressedLongSet();
+        if (hashed)
+        {
+            for (long hash : hashes.toArray())
+            {
+                compressed.add(hash);
+            }
+        }
+        else
+        {
+            for (Object o : counter)
+            {
+                compressed.add(MurmurHash.hash64(o));
+            }
+        }
+        counter = null;
+        hashes = null;
+        hashed = true;
+    }
+
+    /**
+     * Adds a whole compressed set, in one merge if this is not tipped
+     */
+    private void addAll(CompressedLongSet values)
+    {
+        if (tipped)
+        {
+            long[] array = values.toArray();
+            estimator.offerHashed(array, 0, array.length);
+            return;
+        }
+        if (compressed == null)
+        {
+            compress();
+        }
+        compressed.addAll(values);
+        if (compressed.size() > tippingPoint)
+        {
+            tip();
+        }
+    }
+
     /**
      * Switch from exact counting to estimation
      */
@@ -167,12 +405,27 @@ public class CountThenEstimate implements ICardinality, Externalizable
     {
         estimator = builder.build();
 
-        for (Object o : counter)
+        if (compressed != null)
+        {
+            long[] values = compressed.toArray();
+            estimator.offerHashed(values, 0, values.length);
+        }
+        else if (hashed)
         {
-            estimator.offer(o);
+            long[] values = hashes.toArray();
+            estimator.offerHashed(values, 0, values.length);
+        }
+        else
+        {
+            for (Object o : counter)
+            {
+                estimator.offer(o);
+            }
         }
 
         counter = null;
+        hashes = null;
+        compressed = null;
         builder = null;
         tipped = true;
     }
@@ -196,6 +449,8 @@ public class CountThenEstimate implements ICardinality, Externalizable
         if (tipped)
         {
             byte type = in.readByte();
+            hashed = type < 0;
+            type = (byte) Math.abs(type);
             byte[] bytes = new byte[in.readInt()];
             in.readFully(bytes);
 
@@ -223,63 +478,130 @@ public class CountThenEstimate implements ICardinality, Externalizable
         else
         {
             tippingPoint = in.readInt();
-            builder = (IBuilder) in.readObject();
-            int count = in.readInt();
-
-            assert (count <= tippingPoint) : String.format("Invalid serialization: count (%d) > tippingPoint (%d)", count, tippingPoint);
+            if (tippingPoint >= 0)
+            {
+                builder = (IBuilder) in.readObject();
+                readCounter(in);
+                return;
+            }
 
-            counter = new HashSet<Object>(count);
-            for (int i = 0; i < count; i++)
+            // hashed mode and compression are written as a negative tipping point
+            tippingPoint = -1 - tippingPoint;
+            compressionPoint = in.readInt();
+            byte state = in.readByte();
+            builder = (IBuilder) in.readObject();
+            switch (state)
             {
-                counter.add(in.readObject());
+                case OBJECTS:
+                    readCounter(in);
+                    break;
+                case HASHES:
+                    hashed = true;
+                    int count = in.readInt();
+                    hashes = new LongHashSet(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        hashes.add(in.readLong());
+                    }
+                    break;
+                case COMPRESSED:
+                    hashed = true;
+                    compressed = CompressedLongSet.readFrom(in);
+                    break;
+                default:
+                    throw new IOException("Unrecognized exact count state: " + state);
             }
         }
     }
 
+    private void readCounter(ObjectInput in) throws IOException, ClassNotFoundException
+    {
+        int count = in.readInt();
+
+        assert (count <= tippingPoint) : String.format("Invalid serialization: count (%d) > tippingPoint (%d)", count, tippingPoint);
+
+        counter = new HashSet<Object>(count);
+        for (int i = 0; i < count; i++)
+        {
+            counter.add(in.readObject());
+        }
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException
     {
         out.writeBoolean(tipped);
         if (tipped)
         {
+            byte type;
             if (estimator instanceof LinearCounting)
             {
-                out.writeByte(LC);
+                type = LC;
             }
             else if (estimator instanceof AdaptiveCounting)
             {
-                out.writeByte(AC);
+                type = AC;
             }
             else if (estimator instanceof HyperLogLog)
             {
-                out.writeByte(HLC);
+                type = HLC;
             }
             else if (estimator instanceof HyperLogLogPlus)
             {
-                out.writeByte(HLPC);
+                type = HLPC;
             }
             else if (estimator instanceof LogLog)
             {
-                out.writeByte(LLC);
+                type = LLC;
             }
             else
             {
                 throw new IOException("Estimator unsupported for serialization: " + estimator.getClass().getName());
             }
+            // hashed mode is written as a negative type
+            out.writeByte(hashed ? -type : type);
 
             byte[] bytes = estimator.getBytes();
             out.writeInt(bytes.length);
             out.write(bytes);
         }
-        else
+        else if (hashed || compressionPoint > 0)
         {
-            out.writeInt(tippingPoint);
+            out.writeInt(-1 - tippingPoint);
+            out.writeInt(compressionPoint);
+            out.writeByte(compressed != null ? COMPRESSED : (hashed ? HASHES : OBJECTS));
             out.writeObject(builder);
-            out.writeInt(counter.size());
-            for (Object o : counter)
+            if (compressed != null)
+            {
+                compressed.writeTo(out);
+            }
+            else if (hashed)
             {
-                out.writeObject(o);
+                out.writeInt(hashes.size());
+                for (long hash : hashes.toArray())
+                {
+                    out.writeLong(hash);
+                }
             }
+            else
+            {
+                writeCounter(out);
+            }
+        }
+        else
+        {
+            out.writeInt(tippingPoint);
+            out.writeObject(builder);
+            writeCounter(out);
+        }
+    }
+
+    private void writeCounter(ObjectOutput out) throws IOException
+    {
+        out.writeInt(counter.size());
+        for (Object o : counter)
+        {
+            out.writeObject(o);
         }
     }
 
@@ -299,10 +621,16 @@ public class CountThenEstimate implements ICardinality, Externalizable
     /**
      * Merges estimators to produce an estimator for their combined streams
      *
+     * The result is in hashed mode if any of the estimators is, elements counted by the others
+     * are then hashed.  Compressed sets are merged whole, and bring the result into the
+     * compressed tier.  Tipped estimators cannot be rehashed, so they must all be in the mode
+     * of the result.
+     *
      * @param estimators
      * @return merged estimator or null if no estimators were provided
      * @throws CountThenEstimateMergeException
-     *          if estimators are not mergeable (all must be CountThenEstimate made with the same builder)
+     *          if estimators are not mergeable (all must be CountThenEstimate made with the same builder,
+     *          and tipped ones in the mode of the result)
      */
     public static CountThenEstimate mergeEstimators(CountThenEstimate... estimators) throws CardinalityMergeException
     {
@@ -312,12 +640,18 @@ public class CountThenEstimate implements ICardinality, Externalizable
         {
             List<ICardinality> tipped = new ArrayList<ICardinality>(numEstimators);
             List<CountThenEstimate> untipped = new ArrayList<CountThenEstimate>(numEstimators);
+            boolean hashed = false;
+            boolean tippedHashed = false;
+            boolean tippedUnhashed = false;
 
             for (CountThenEstimate estimator : estimators)
             {
+                hashed |= estimator.hashed;
                 if (estimator.tipped)
                 {
                     tipped.add(estimator.estimator);
+                    tippedHashed |= estimator.hashed;
+                    tippedUnhashed |= !estimator.hashed;
                 }
                 else
                 {
@@ -325,21 +659,43 @@ public class CountThenEstimate implements ICardinality, Externalizable
                 }
             }
 
+            // the estimators of either mode saw different hashes of the same elements
+            if (hashed && tippedUnhashed)
+            {
+                throw new CountThenEstimateMergeException("Cannot merge estimators that tipped " +
+                                                          (tippedHashed ? "in different modes" : "unhashed with hashed ones"));
+            }
+
             if (untipped.size() > 0)
             {
-                merged = new CountThenEstimate(untipped.get(0).tippingPoint, untipped.get(0).builder);
+                CountThenEstimate first = untipped.get(0);
+                merged = new CountThenEstimate(first.tippingPoint, first.builder, hashed, first.compressionPoint);
 
                 for (CountThenEstimate cte : untipped)
                 {
-                    for (Object o : cte.counter)
+                    if (cte.compressed != null)
+                    {
+                        merged.addAll(cte.compressed);
+                    }
+                    else if (cte.hashed)
+                    {
+                        for (long hash : cte.hashes.toArray())
+                        {
+                            merged.offerHashed(hash);
+                        }
+                    }
+                    else
                     {
-                        merged.offer(o);
+                        for (Object o : cte.counter)
+                        {
+                            merged.offer(o);
+                        }
                     }
                 }
             }
             else
             {
-                merged = new CountThenEstimate(0, new LinearCounting.Builder(1));
+                merged = new CountThenEstimate(0, new LinearCounting.Builder(1), hashed);
                 merged.tip();
                 merged.estimator = tipped.remove(0);
             }
@@ -17,15 +17,15 @@
 package com.clearspring.analytics.stream.cardinality;
 
 import com.clearspring.analytics.hash.MurmurHash;
-import com.clearspring.analytics.util.Bits;
 import com.clearspring.analytics.util.IBuilder;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Java implementation of HyperLogLog (HLL) algorithm from this paper:
@@ -41,7 +41,8 @@ import java.io.Serializable;
  * of the space that LL does to get the same accuracy.
  * <p/>
  * This implementation implements a single counter.  If a large (millions)
- * number of counters are required you may want to refer to:
+ * number of counters are required see {@link HyperLogLogArray}, which keeps
+ * the registers of many counters off-heap, or you may want to refer to:
  * <p/>
  * http://dsiutils.dsi.unimi.it/
  * <p/>
@@ -70,13 +71,46 @@ import java.io.Serializable;
  * in this project is faster and produces better results than the 32 bit murmur3
  * implementation google provides.
  * </p>
+ *
+ * <p>
+ * Counters that mostly see few distinct values can be created in sparse mode, see
+ * {@link #HyperLogLog(int, boolean)}.  They hash and estimate exactly as the dense ones do,
+ * but keep only the registers that are not zero until the full register set becomes the
+ * smaller representation.
+ * </p>
  */
 public class HyperLogLog implements ICardinality
 {
-    private final RegisterSet registerSet;
+    /**
+     * Sparse mode is only available while index and value fit in one int.
+     */
+    private static final int MAX_SPARSE_LOG2M = 25;
+    private static final int SPARSE_INITIAL_CAPACITY = 8;
+    private static final int SPARSE_VALUE_BITS = 6;
+    private static final int SPARSE_VALUE_MASK = (1 << SPARSE_VALUE_BITS) - 1;
+
+    /**
+     * alpha for an infinite number of registers, 1 / (2 ln 2), used by the improved estimator.
+     */
+    private static final double IMPROVED_ALPHA = 0.5 / Math.log(2);
+
+    /**
+     * The registers, null in sparse mode.
+     */
+    private RegisterSet registerSet;
     private final int log2m;
     private final double alphaMM;
 
+    /**
+     * In sparse mode, an open addressing hash table, by register index, of the registers that
+     * are not zero.  Each entry holds (index << SPARSE_VALUE_BITS) | value, and 0 marks an
+     * empty slot since values are never 0.  Null in dense mode.
+     */
+    private int[] sparseSet;
+    private int sparseSize;
+    private boolean trackHistogram;
+    private boolean improvedEstimator;
+
 
     /**
      * Create a new HyperLogLog instance using the specified standard deviation.
@@ -89,7 +123,7 @@ public class HyperLogLog implements ICardinality
         this(log2m(rsd));
     }
 
-    private static int log2m(double rsd)
+    static int log2m(double rsd)
     {
         return (int) (Math.log((1.106 / rsd) * (1.106 / rsd)) / Math.log(2));
     }
@@ -107,6 +141,30 @@ public class HyperLogLog implements ICardinality
         this(log2m, new RegisterSet((int) Math.pow(2, log2m)));
     }
 
+    /**
+     * Create a new HyperLogLog instance which, if <code>sparse</code> is true, starts in sparse
+     * mode: only the registers that are not zero are stored, as (index, value) pairs, until
+     * the full register set would take less memory, when it switches to the dense registers
+     * for good.  The hash, the registers, the estimates and the serialized form are the same
+     * as in dense mode.
+     * <p/>
+     * Counters with log2m above 25, or too small to gain anything, always use dense mode.
+     *
+     * @param log2m  - the number of bits to use as the basis for the HLL instance
+     * @param sparse - whether to start in sparse mode
+     */
+    public HyperLogLog(int log2m, boolean sparse)
+    {
+        this(log2m, sparse && log2m <= MAX_SPARSE_LOG2M
+                    && SPARSE_INITIAL_CAPACITY < RegisterSet.getSizeForCount((int) Math.pow(2, log2m))
+                ? null
+                : new RegisterSet((int) Math.pow(2, log2m)));
+        if (registerSet == null)
+        {
+            sparseSet = new int[SPARSE_INITIAL_CAPACITY];
+        }
+    }
+
     /**
      * Creates a new HyperLogLog instance using the given registers.  Used for unmarshalling a serialized
      * instance and for merging multiple counters together.
@@ -117,22 +175,24 @@ public class HyperLogLog implements ICardinality
     {
         this.registerSet = registerSet;
         this.log2m = log2m;
-        int m = (int) Math.pow(2, this.log2m);
+        this.alphaMM = alphaMM(log2m);
+    }
+
+    static double alphaMM(int log2m)
+    {
+        int m = (int) Math.pow(2, log2m);
 
         // See the paper.
         switch (log2m)
         {
             case 4:
-                alphaMM = 0.673 * m * m;
-                break;
+                return 0.673 * m * m;
             case 5:
-                alphaMM = 0.697 * m * m;
-                break;
+                return 0.697 * m * m;
             case 6:
-                alphaMM = 0.709 * m * m;
-                break;
+                return 0.709 * m * m;
             default:
-                alphaMM = (0.7213 / (1 + 1.079 / m)) * m * m;
+                return (0.7213 / (1 + 1.079 / m)) * m * m;
         }
     }
 
@@ -144,7 +204,7 @@ public class HyperLogLog implements ICardinality
         // j will be between 0 and 2^log2m
         final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
         final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
+        return registerSet != null ? registerSet.updateIfGreater(j, r) : offerSparse(j, r);
     }
 
     @Override
@@ -154,7 +214,35 @@ public class HyperLogLog implements ICardinality
         // j will be between 0 and 2^log2m
         final int j = hashedValue >>> (Integer.SIZE - log2m);
         final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
+        return registerSet != null ? registerSet.updateIfGreater(j, r) : offerSparse(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashedLongs, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            final long hashedValue = hashedLongs[i];
+            final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+            final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= registerSet != null ? registerSet.updateIfGreater(j, r) : offerSparse(j, r);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int[] hashedInts, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            final int hashedValue = hashedInts[i];
+            final int j = hashedValue >>> (Integer.SIZE - log2m);
+            final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= registerSet != null ? registerSet.updateIfGreater(j, r) : offerSparse(j, r);
+        }
+        return modified;
     }
 
 	@Override
@@ -164,22 +252,172 @@ public class HyperLogLog implements ICardinality
         return offerHashed(x);
     }
 
+    /**
+     * Raises register <code>index</code> to <code>value</code> in sparse mode, switching to
+     * dense mode instead of growing the table once the registers would take less memory.
+     *
+     * @return true if the register changed
+     */
+    private boolean offerSparse(int index, int value)
+    {
+        int mask = sparseSet.length - 1;
+        int slot = index & mask;
+        for (int entry; (entry = sparseSet[slot]) != 0; slot = (slot + 1) & mask)
+        {
+            if (entry >>> SPARSE_VALUE_BITS == index)
+            {
+                if ((entry & SPARSE_VALUE_MASK) >= value)
+                {
+                    return false;
+                }
+                sparseSet[slot] = (index << SPARSE_VALUE_BITS) | value;
+                return true;
+            }
+        }
+
+        if (sparseSize >= sparseSet.length - (sparseSet.length >>> 2))
+        {
+            // at 3/4 load factor
+            if (sparseSet.length * 2 >= RegisterSet.getSizeForCount(1 << log2m))
+            {
+                convertToDense();
+                return registerSet.updateIfGreater(index, value);
+            }
+            rehash(sparseSet.length * 2);
+            return offerSparse(index, value);
+        }
+        sparseSet[slot] = (index << SPARSE_VALUE_BITS) | value;
+        sparseSize++;
+        return true;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] old = sparseSet;
+        sparseSet = new int[capacity];
+        int mask = capacity - 1;
+        for (int entry : old)
+        {
+            if (entry != 0)
+            {
+                int slot = (entry >>> SPARSE_VALUE_BITS) & mask;
+                while (sparseSet[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                sparseSet[slot] = entry;
+            }
+        }
+    }
+
+    /**
+     * Raises the registers to the values of the sparse entries, in either mode.
+     */
+    private void addSparse(int[] entries)
+    {
+        for (int entry : entries)
+        {
+            if (entry != 0)
+            {
+                int index = entry >>> SPARSE_VALUE_BITS;
+                int value = entry & SPARSE_VALUE_MASK;
+                if (registerSet != null)
+                {
+                    registerSet.updateIfGreater(index, value);
+                }
+                else
+                {
+                    offerSparse(index, value);
+                }
+            }
+        }
+    }
+
+    private void convertToDense()
+    {
+        registerSet = toRegisterSet();
+        if (trackHistogram)
+        {
+            registerSet.trackHistogram();
+        }
+        sparseSet = null;
+        sparseSize = 0;
+    }
+
+    /**
+     * @return the registers, a new copy of them in sparse mode
+     */
+    private RegisterSet toRegisterSet()
+    {
+        if (registerSet != null)
+        {
+            return registerSet;
+        }
+        RegisterSet dense = new RegisterSet((int) Math.pow(2, log2m));
+        for (int entry : sparseSet)
+        {
+            if (entry != 0)
+            {
+                dense.updateIfGreater(entry >>> SPARSE_VALUE_BITS, entry & SPARSE_VALUE_MASK);
+            }
+        }
+        return dense;
+    }
+
 
     @Override
     public long cardinality()
     {
+        if (improvedEstimator)
+        {
+            int count = (int) Math.pow(2, log2m);
+            return Math.round(improvedEstimate(registerSet != null ? registerSet.histogram() : sparseHistogram(), count, log2m));
+        }
+        if (registerSet == null)
+        {
+            // every register missing from the table is a zero
+            int count = (int) Math.pow(2, log2m);
+            double zeros = count - sparseSize;
+            double registerSum = zeros;
+            for (int entry : sparseSet)
+            {
+                if (entry != 0)
+                {
+                    registerSum += 1.0 / (1L << (entry & SPARSE_VALUE_MASK));
+                }
+            }
+            return estimate(alphaMM, count, registerSum, zeros);
+        }
+
         double registerSum = 0;
         int count = registerSet.count;
         double zeros = 0.0;
-        for (int j = 0; j < registerSet.count; j++)
+        if (registerSet.isTrackingHistogram())
         {
-            int val = registerSet.get(j);
-            registerSum += 1.0 / (1<<val);
-            if (val == 0) {
-                zeros++;
+            int[] histogram = registerSet.histogram();
+            for (int val = 0; val < histogram.length; val++)
+            {
+                registerSum += histogram[val] / (double) (1L << val);
             }
+            zeros = histogram[0];
         }
+        else
+        {
+            for (int j = 0; j < registerSet.count; j++)
+            {
+                int val = registerSet.get(j);
+                registerSum += 1.0 / (1<<val);
+                if (val == 0) {
+                    zeros++;
+                }
+            }
+        }
+
+        return estimate(alphaMM, count, registerSum, zeros);
+    }
 
+    static long estimate(double alphaMM, int count, double registerSum, double zeros)
+    {
         double estimate = alphaMM * (1 / registerSum);
 
         if (estimate <= (5.0 / 2.0) * count)
@@ -193,81 +431,456 @@ public class HyperLogLog implements ICardinality
         }
     }
 
+    /**
+     * The number of registers holding each value in sparse mode.
+     */
+    private int[] sparseHistogram()
+    {
+        int[] histogram = new int[1 << RegisterSet.REGISTER_SIZE];
+        histogram[0] = (int) Math.pow(2, log2m) - sparseSize;
+        for (int entry : sparseSet)
+        {
+            if (entry != 0)
+            {
+                histogram[entry & SPARSE_VALUE_MASK]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Ertl's improved raw estimator, from "New cardinality estimation algorithms for
+     * HyperLogLog sketches", 2017.  It needs only the histogram of the register values, so it
+     * costs O(q) given the histogram, and needs neither empirical bias tables nor switching
+     * to linear counting for small cardinalities.
+     * <p/>
+     * q, the number of hash bits left to the run lengths, is 64 - log2m as for a 64 bit hash,
+     * capped so that the largest value a register can hold counts as saturated.  32 bit hashes
+     * never reach that, and only lose accuracy near 2^32 distinct values, as they do anyway.
+     *
+     * @param histogram the number of registers holding each value
+     * @param count     the number of registers, 2^log2m
+     */
+    static double improvedEstimate(int[] histogram, int count, int log2m)
+    {
+        int q = Math.min(64 - log2m, histogram.length - 2);
+        int saturated = 0;
+        for (int k = q + 1; k < histogram.length; k++)
+        {
+            saturated += histogram[k];
+        }
+        double z = count * tau(1 - (double) saturated / count);
+        for (int k = q; k >= 1; k--)
+        {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += count * sigma((double) histogram[0] / count);
+        return IMPROVED_ALPHA * count * count / z;
+    }
+
+    /**
+     * sigma(x) = x + sum over k >= 1 of x^(2^k) * 2^(k-1), infinite at 1.
+     */
+    private static double sigma(double x)
+    {
+        if (x == 1)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1;
+        double z = x;
+        double zPrev;
+        do
+        {
+            x *= x;
+            zPrev = z;
+            z += x * y;
+            y += y;
+        }
+        while (z != zPrev);
+        return z;
+    }
+
+    /**
+     * tau(x) = (1 - x - sum over k >= 1 of (1 - x^(2^-k))^2 * 2^-k) / 3.
+     */
+    private static double tau(double x)
+    {
+        if (x == 0 || x == 1)
+        {
+            return 0;
+        }
+        double y = 1;
+        double z = 1 - x;
+        double zPrev;
+        do
+        {
+            x = Math.sqrt(x);
+            zPrev = z;
+            y *= 0.5;
+            z -= (1 - x) * (1 - x) * y;
+        }
+        while (z != zPrev);
+        return z / 3;
+    }
+
+    /**
+     * Estimate with Ertl's improved raw estimator, see {@link #improvedEstimate(int[], int, int)},
+     * instead of the raw HyperLogLog estimate with linear counting for small cardinalities.
+     * It is more accurate in the range where the two meet.  Combined with
+     * {@link #trackRegisterHistogram()}, {@link #cardinality()} then takes constant time and
+     * allocates nothing.  Estimators created by {@link #merge(ICardinality...)} from this one
+     * use it too.  The serialized form is not affected.
+     */
+    public void useImprovedEstimator()
+    {
+        improvedEstimator = true;
+    }
+
+    /**
+     * Keep a histogram of the register values up to date on every update and merge so that
+     * {@link #cardinality()} runs in constant time instead of scanning all 2^log2m registers.
+     * Worth it when estimates are read far more often than the registers are scanned anyway;
+     * the serialized form is not affected.
+     */
+    public void trackRegisterHistogram()
+    {
+        if (registerSet != null)
+        {
+            registerSet.trackHistogram();
+        }
+        else
+        {
+            // cardinality is cheap in sparse mode, start tracking on the switch to dense
+            trackHistogram = true;
+        }
+    }
+
+    private boolean isTrackingHistogram()
+    {
+        return registerSet != null ? registerSet.isTrackingHistogram() : trackHistogram;
+    }
+
+    /**
+     * @return the size of the dense registers, also in sparse mode since that is what is
+     *         serialized
+     */
     @Override
     public int sizeof()
     {
-        return registerSet.size * 4;
+        return (registerSet != null ? registerSet.size : RegisterSet.getSizeForCount((int) Math.pow(2, log2m))) * 4;
     }
 
     @Override
     public byte[] getBytes() throws IOException
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] bytes = new byte[serializedSize()];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
 
-        dos.writeInt(log2m);
-        dos.writeInt(registerSet.size * 4);
-        for (int x : registerSet.bits())
-        {
-            dos.writeInt(x);
-        }
+    /**
+     * @return the number of bytes {@link #getBytes()} and {@link #writeTo(ByteBuffer)} produce
+     */
+    public int serializedSize()
+    {
+        return 8 + sizeof();
+    }
 
-        return baos.toByteArray();
+    /**
+     * Writes the bytes {@link #getBytes()} returns at the buffer's position, whatever the
+     * buffer's byte order, and advances the position past them.  A sparse estimator writes
+     * its registers in full, exactly as a dense one holding the same values.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes
+     *                                          remain, in which case the position is unchanged
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        ByteBuffer out = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        out.putInt(log2m);
+        out.putInt(sizeof());
+        toRegisterSet().writeTo(out);
+        buffer.position(out.position());
+    }
+
+    /**
+     * Reads an estimator written by {@link #writeTo(ByteBuffer)} or {@link #getBytes()} at the
+     * buffer's position, whatever the buffer's byte order, and advances the position past it.
+     *
+     * @throws BufferUnderflowException if the buffer ends before the estimator does, in which
+     *                                  case the position is unchanged
+     */
+    public static HyperLogLog readFrom(ByteBuffer buffer)
+    {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int log2m = in.getInt();
+        int size = in.getInt();
+        RegisterSet registerSet = RegisterSet.readFrom(in, (int) Math.pow(2, log2m), size / 4);
+        buffer.position(in.position());
+        return new HyperLogLog(log2m, registerSet);
     }
     
     /** Add all the elements of the other set to this set.
      * 
-     * This operation does not imply a loss of precision.
+     * This operation does not imply a loss of precision.  A higher precision other is
+     * folded to this precision first, see {@link #fold(int)}.
      * 
-     * @param other A compatible Hyperloglog instance (same log2m)
+     * @param other A compatible Hyperloglog instance (same or higher log2m)
      * @throws CardinalityMergeException if other is not compatible
      */
     public void addAll(HyperLogLog other) throws CardinalityMergeException {
-        if (this.sizeof() != other.sizeof())
+        other = foldToThis(other);
+
+        if (other.registerSet == null)
         {
-            throw new HyperLogLogMergeException("Cannot merge estimators of different sizes");
+            addSparse(other.sparseSet);
+            return;
+        }
+        if (registerSet == null)
+        {
+            convertToDense();
         }
-        
         registerSet.merge(other.registerSet);
     }
 
+    /**
+     * Add all the elements of the other sets to this set.  The dense ones are merged in a
+     * single pass over the registers, the sparse ones are then added one at a time.  Higher
+     * precision ones are folded to this precision first, see {@link #fold(int)}.
+     *
+     * @throws CardinalityMergeException if any of the others has a lower precision, in which
+     *                                   case this set is left unchanged
+     */
+    public void addAll(HyperLogLog... others) throws CardinalityMergeException
+    {
+        HyperLogLog[] folded = others;
+        for (int i = 0; i < others.length; i++)
+        {
+            HyperLogLog other = foldToThis(others[i]);
+            if (other != others[i])
+            {
+                if (folded == others)
+                {
+                    folded = others.clone();
+                }
+                folded[i] = other;
+            }
+        }
+        others = folded;
+
+        RegisterSet[] registerSets = new RegisterSet[others.length];
+        int denseCount = 0;
+        for (HyperLogLog other : others)
+        {
+            if (other.registerSet != null)
+            {
+                registerSets[denseCount++] = other.registerSet;
+            }
+        }
+
+        if (denseCount > 0)
+        {
+            if (registerSet == null)
+            {
+                convertToDense();
+            }
+            registerSet.merge(denseCount == others.length ? registerSets : Arrays.copyOf(registerSets, denseCount));
+        }
+        for (HyperLogLog other : others)
+        {
+            if (other.registerSet == null)
+            {
+                addSparse(other.sparseSet);
+            }
+        }
+    }
+
+    /**
+     * Add all the elements of the serialized sets to this set, reading their registers where
+     * they lie instead of deserializing them first.
+     *
+     * @throws CardinalityMergeException if any of the views is a different size, in which
+     *                                   case this set is left unchanged
+     */
+    public void addAll(HyperLogLogView... views) throws CardinalityMergeException
+    {
+        ByteBuffer[] registers = new ByteBuffer[views.length];
+        for (int i = 0; i < views.length; i++)
+        {
+            if (this.sizeof() != views[i].sizeof())
+            {
+                throw new HyperLogLogMergeException("Cannot merge estimators of different sizes");
+            }
+            registers[i] = views[i].registers();
+        }
+        if (registerSet == null && views.length > 0)
+        {
+            convertToDense();
+        }
+        registerSet.merge(registers);
+    }
+
+    /**
+     * Estimators of different precisions are merged at the lowest of them, the others are
+     * folded to it, see {@link #fold(int)}.
+     */
     @Override
     public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException
     {
-        HyperLogLog merged = new HyperLogLog(log2m);
-        merged.addAll(this);
-
         if (estimators == null)
         {
-            return merged;
+            estimators = new ICardinality[0];
         }
-        
-        for (ICardinality estimator : estimators)
+
+        HyperLogLog[] hlls = new HyperLogLog[estimators.length + 1];
+        hlls[0] = this;
+        int minLog2m = log2m;
+        for (int i = 0; i < estimators.length; i++)
         {
-            if (!(estimator instanceof HyperLogLog))
+            if (!(estimators[i] instanceof HyperLogLog))
             {
                 throw new HyperLogLogMergeException("Cannot merge estimators of different class");
             }
-            HyperLogLog hll = (HyperLogLog) estimator;
-            merged.addAll(hll);
+            hlls[i + 1] = (HyperLogLog) estimators[i];
+            minLog2m = Math.min(minLog2m, hlls[i + 1].log2m);
         }
+
+        HyperLogLog merged = newFolded(minLog2m);
+        merged.addAll(hlls);
         
         return merged;
     }
 
+    /**
+     * Reduces this estimator to the lower precision <code>log2m</code> without the original
+     * stream: the result is exactly the estimator that offering the same hashes at that
+     * precision would have built.
+     * <p/>
+     * Each register keeps the leading bits of its index as the new index.  If the bits
+     * dropped from the index are not all zero, the run length of the shorter hash suffix
+     * ends within them, otherwise it is the old run length plus the number of bits dropped.
+     * Folding keeps sparse mode, histogram tracking and the estimator in use.
+     *
+     * @param log2m the new precision, at most that of this estimator
+     * @return a new estimator, this one is not modified
+     */
+    public HyperLogLog fold(int log2m)
+    {
+        if (log2m > this.log2m || log2m < 1)
+        {
+            throw new IllegalArgumentException("log2m must be between 1 and " + this.log2m);
+        }
+        HyperLogLog folded = newFolded(log2m);
+        int shift = this.log2m - log2m;
+        if (registerSet != null)
+        {
+            for (int j = 0; j < registerSet.count; j++)
+            {
+                int value = registerSet.get(j);
+                if (value != 0)
+                {
+                    folded.foldRegister(j, value, shift);
+                }
+            }
+        }
+        else
+        {
+            for (int entry : sparseSet)
+            {
+                if (entry != 0)
+                {
+                    folded.foldRegister(entry >>> SPARSE_VALUE_BITS, entry & SPARSE_VALUE_MASK, shift);
+                }
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * @return an empty estimator of the given precision with the options of this one
+     */
+    private HyperLogLog newFolded(int log2m)
+    {
+        HyperLogLog folded = new HyperLogLog(log2m, registerSet == null);
+        if (isTrackingHistogram())
+        {
+            folded.trackRegisterHistogram();
+        }
+        if (improvedEstimator)
+        {
+            folded.useImprovedEstimator();
+        }
+        return folded;
+    }
+
+    private void foldRegister(int index, int value, int shift)
+    {
+        int foldedIndex = index >>> shift;
+        int foldedValue = foldedValue(index, value, shift);
+        if (registerSet != null)
+        {
+            registerSet.updateIfGreater(foldedIndex, foldedValue);
+        }
+        else
+        {
+            offerSparse(foldedIndex, foldedValue);
+        }
+    }
+
+    /**
+     * The value of register <code>index</code> once <code>shift</code> bits are dropped from
+     * the index, see {@link #fold(int)}.
+     */
+    static int foldedValue(int index, int value, int shift)
+    {
+        int dropped = index & ((1 << shift) - 1);
+        if (dropped != 0)
+        {
+            return Integer.numberOfLeadingZeros(dropped) - (Integer.SIZE - shift) + 1;
+        }
+        // registers hold at most 31
+        return Math.min(value + shift, (1 << RegisterSet.REGISTER_SIZE) - 1);
+    }
+
+    /**
+     * @return other, or other folded to this precision if it is higher
+     */
+    private HyperLogLog foldToThis(HyperLogLog other) throws HyperLogLogMergeException
+    {
+        if (other.log2m < log2m)
+        {
+            throw new HyperLogLogMergeException("Cannot add an estimator of lower precision, merge them instead");
+        }
+        return other.log2m == log2m ? other : other.fold(log2m);
+    }
+
     public static class Builder implements IBuilder<ICardinality>, Serializable
     {
+        private static final long serialVersionUID = -2567898469253021883L;
+
         private double rsd;
+        private boolean sparse;
 
         public Builder(double rsd)
+        {
+            this(rsd, false);
+        }
+
+        /**
+         * @param sparse whether the estimators built start in sparse mode, see
+         *               {@link HyperLogLog#HyperLogLog(int, boolean)}
+         */
+        public Builder(double rsd, boolean sparse)
         {
             this.rsd = rsd;
+            this.sparse = sparse;
         }
 
         @Override
         public HyperLogLog build()
         {
-            return new HyperLogLog(rsd);
+            return new HyperLogLog(log2m(rsd), sparse);
         }
 
         @Override
@@ -280,16 +893,35 @@ public class HyperLogLog implements ICardinality
 
         public static HyperLogLog build(byte[] bytes) throws IOException
         {
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            DataInputStream oi = new DataInputStream(bais);
-            int log2m = oi.readInt();
-            int size = oi.readInt();
-            byte[] longArrayBytes = new byte[size];
-            oi.readFully(longArrayBytes);
-            return new HyperLogLog(log2m, new RegisterSet((int) Math.pow(2, log2m), Bits.getBits(longArrayBytes)));
+            try
+            {
+                return readFrom(ByteBuffer.wrap(bytes));
+            }
+            catch (BufferUnderflowException e)
+            {
+                throw new EOFException();
+            }
         }
     }
 
+    int getLog2m()
+    {
+        return log2m;
+    }
+
+    /**
+     * @return the registers, a new copy of them in sparse mode
+     */
+    RegisterSet getRegisterSet()
+    {
+        return toRegisterSet();
+    }
+
+    boolean isSparse()
+    {
+        return registerSet == null;
+    }
+
     @SuppressWarnings("serial")
     protected static class HyperLogLogMergeException extends CardinalityMergeException
     {
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A fixed number of {@link HyperLogLog} counters of the same precision, addressed by id.
+ * <p/>
+ * The registers of all counters live contiguously in direct (off-heap) byte buffers, so a
+ * counter costs its registers and nothing else: there is no object, array header or
+ * reference per counter.  Each counter uses the same word layout as a {@link RegisterSet},
+ * so it estimates exactly what a HyperLogLog with the same log2m fed the same values would,
+ * and its words serialize to the same bytes.
+ * <p/>
+ * A single buffer can hold at most 2GB, so the counters are spread over as many buffers as
+ * needed, each holding a whole number of counters.
+ * <p/>
+ * Not thread safe.
+ */
+public class HyperLogLogArray
+{
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final int log2m;
+    private final int size;
+    private final int count;
+    private final int bytesPerCounter;
+    private final int countersPerSegment;
+    private final ByteBuffer[] segments;
+    private final double alphaMM;
+
+    /**
+     * Create <code>size</code> empty counters with ids 0 to size - 1.
+     *
+     * @param log2m - the number of bits to use as the basis for each counter, as for
+     *              {@link HyperLogLog#HyperLogLog(int)}
+     * @param size  - the number of counters
+     */
+    public HyperLogLogArray(int log2m, int size)
+    {
+        this(log2m, size, MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Exposed for testing, to spread a small array over several buffers.
+     */
+    HyperLogLogArray(int log2m, int size, int maxSegmentBytes)
+    {
+        this.log2m = log2m;
+        this.size = size;
+        this.count = (int) Math.pow(2, log2m);
+        this.bytesPerCounter = RegisterSet.getSizeForCount(count) * 4;
+        this.countersPerSegment = Math.max(1, maxSegmentBytes / bytesPerCounter);
+        this.alphaMM = HyperLogLog.alphaMM(log2m);
+
+        int segmentCount = (size + countersPerSegment - 1) / countersPerSegment;
+        this.segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            int counters = Math.min(countersPerSegment, size - i * countersPerSegment);
+            segments[i] = ByteBuffer.allocateDirect(counters * bytesPerCounter);
+        }
+    }
+
+    /**
+     * @return the number of counters
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getLog2m()
+    {
+        return log2m;
+    }
+
+    /**
+     * @return the number of bytes of register data, excluding the serialization header
+     */
+    public long sizeof()
+    {
+        return (long) size * bytesPerCounter;
+    }
+
+    public boolean offer(int id, Object o)
+    {
+        return offerHashed(id, MurmurHash.hash(o));
+    }
+
+    public boolean offerHashed(int id, long hashedValue)
+    {
+        final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+        final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(id, j, r);
+    }
+
+    public boolean offerHashed(int id, int hashedValue)
+    {
+        final int j = hashedValue >>> (Integer.SIZE - log2m);
+        final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(id, j, r);
+    }
+
+    private boolean updateIfGreater(int id, int position, int value)
+    {
+        ByteBuffer segment = segments[id / countersPerSegment];
+        int bucket = position / RegisterSet.LOG2_BITS_PER_WORD;
+        int shift = RegisterSet.REGISTER_SIZE * (position - (bucket * RegisterSet.LOG2_BITS_PER_WORD));
+        int index = offset(id) + bucket * 4;
+
+        // a register holds at most 31, larger run lengths must not spill into the next one
+        value = Math.min(value, 0x1f);
+        int word = segment.getInt(index);
+        if (((word >>> shift) & 0x1f) < value)
+        {
+            segment.putInt(index, (word & ~(0x1f << shift)) | (value << shift));
+            return true;
+        }
+        return false;
+    }
+
+    public long cardinality(int id)
+    {
+        ByteBuffer segment = segments[id / countersPerSegment];
+        int offset = offset(id);
+        double registerSum = 0;
+        double zeros = 0.0;
+        int position = 0;
+        for (int index = offset; position < count; index += 4)
+        {
+            int word = segment.getInt(index);
+            for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD && position < count; j++, position++)
+            {
+                int val = (word >>> (RegisterSet.REGISTER_SIZE * j)) & 0x1f;
+                registerSum += 1.0 / (1 << val);
+                if (val == 0)
+                {
+                    zeros++;
+                }
+            }
+        }
+        return HyperLogLog.estimate(alphaMM, count, registerSum, zeros);
+    }
+
+    /**
+     * Add all the elements of counter <code>otherId</code> of <code>other</code> to counter
+     * <code>id</code> of this array.  <code>other</code> may be this array.
+     *
+     * @throws CardinalityMergeException if the arrays have different precisions
+     */
+    public void merge(int id, HyperLogLogArray other, int otherId) throws CardinalityMergeException
+    {
+        if (other.log2m != log2m)
+        {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+
+        ByteBuffer segment = segments[id / countersPerSegment];
+        ByteBuffer otherSegment = other.segments[otherId / other.countersPerSegment];
+        int offset = offset(id);
+        int otherOffset = other.offset(otherId);
+        for (int i = 0; i < bytesPerCounter; i += 4)
+        {
+            segment.putInt(offset + i, RegisterSet.max(segment.getInt(offset + i), otherSegment.getInt(otherOffset + i)));
+        }
+    }
+
+    /**
+     * @return a copy of counter <code>id</code> as a standalone HyperLogLog
+     */
+    public HyperLogLog get(int id)
+    {
+        ByteBuffer segment = segments[id / countersPerSegment];
+        int offset = offset(id);
+        int[] words = new int[bytesPerCounter / 4];
+        for (int i = 0; i < words.length; i++)
+        {
+            words[i] = segment.getInt(offset + i * 4);
+        }
+        return new HyperLogLog(log2m, new RegisterSet(count, words));
+    }
+
+    private int offset(int id)
+    {
+        return (id % countersPerSegment) * bytesPerCounter;
+    }
+
+    /**
+     * Writes log2m and the number of counters followed by the registers of every counter in
+     * id order.  The register bytes of each counter are those {@link HyperLogLog#getBytes()}
+     * writes after its own header.  The stream is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(log2m);
+        dos.writeInt(size);
+        dos.flush();
+
+        WritableByteChannel channel = Channels.newChannel(out);
+        for (ByteBuffer segment : segments)
+        {
+            ByteBuffer src = segment.duplicate();
+            src.clear();
+            while (src.hasRemaining())
+            {
+                channel.write(src);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads an array written by {@link #writeTo(OutputStream)}.  Nothing past the array is
+     * consumed from the stream, which is not closed.
+     */
+    public static HyperLogLogArray readFrom(InputStream in) throws IOException
+    {
+        DataInputStream dis = new DataInputStream(in);
+        int log2m = dis.readInt();
+        int size = dis.readInt();
+        HyperLogLogArray array = new HyperLogLogArray(log2m, size);
+
+        ReadableByteChannel channel = Channels.newChannel(in);
+        for (ByteBuffer segment : array.segments)
+        {
+            ByteBuffer dst = segment.duplicate();
+            dst.clear();
+            while (dst.hasRemaining())
+            {
+                if (channel.read(dst) < 0)
+                {
+                    throw new EOFException();
+                }
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Serializes the whole array, see {@link #writeTo(OutputStream)}.  Limited to arrays of
+     * less than 2GB, larger ones must be written to a stream.
+     */
+    public byte[] getBytes() throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeTo(baos);
+        return baos.toByteArray();
+    }
+}
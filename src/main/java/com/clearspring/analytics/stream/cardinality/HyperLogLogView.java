@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A read-only {@link HyperLogLog} over bytes written by {@link HyperLogLog#getBytes()} or
+ * {@link HyperLogLog#writeTo(ByteBuffer)}.
+ * <p/>
+ * Wrapping only reads the header: the registers are read where they lie, in the caller's
+ * array or buffer, whenever the estimate is computed or the view is merged into a
+ * HyperLogLog with {@link HyperLogLog#addAll(HyperLogLogView...)}.  This makes answering a
+ * query from stored sketches cheap when each one is only used once.  The view sees any
+ * later change to the underlying bytes.
+ */
+public class HyperLogLogView
+{
+    private final int log2m;
+    private final int count;
+    /**
+     * The register words, big endian from index 0.
+     */
+    private final ByteBuffer registers;
+
+    private HyperLogLogView(int log2m, ByteBuffer registers)
+    {
+        this.log2m = log2m;
+        this.count = (int) Math.pow(2, log2m);
+        this.registers = registers;
+    }
+
+    /**
+     * @return a view of the estimator serialized in <code>bytes</code>
+     * @throws BufferUnderflowException if the array ends before the estimator does
+     */
+    public static HyperLogLogView wrap(byte[] bytes)
+    {
+        return wrap(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Views the estimator serialized at the buffer's position and advances the position past
+     * it, so consecutive estimators can be wrapped one after the other.  The buffer's byte
+     * order does not matter.
+     *
+     * @throws BufferUnderflowException if the buffer ends before the estimator does, in which
+     *                                  case the position is unchanged
+     */
+    public static HyperLogLogView wrap(ByteBuffer buffer)
+    {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int log2m = in.getInt();
+        int size = in.getInt();
+        if (size > in.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer registers = in.slice().order(ByteOrder.BIG_ENDIAN);
+        registers.limit(size);
+        buffer.position(in.position() + size);
+        return new HyperLogLogView(log2m, registers);
+    }
+
+    /**
+     * @return the estimate the viewed HyperLogLog would give
+     */
+    public long cardinality()
+    {
+        double registerSum = 0;
+        double zeros = 0.0;
+        int position = 0;
+        for (int bucket = 0; position < count; bucket++)
+        {
+            int word = registers.getInt(bucket << 2);
+            for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD && position < count; j++, position++)
+            {
+                int val = (word >>> (RegisterSet.REGISTER_SIZE * j)) & 0x1f;
+                registerSum += 1.0 / (1 << val);
+                if (val == 0)
+                {
+                    zeros++;
+                }
+            }
+        }
+        return HyperLogLog.estimate(HyperLogLog.alphaMM(log2m), count, registerSum, zeros);
+    }
+
+    public int getLog2m()
+    {
+        return log2m;
+    }
+
+    /**
+     * @return the size in bytes of the viewed registers, as {@link HyperLogLog#sizeof()}
+     */
+    public int sizeof()
+    {
+        return registers.limit() & ~3;
+    }
+
+    /**
+     * @return a HyperLogLog holding a copy of the viewed registers
+     */
+    public HyperLogLog toHyperLogLog()
+    {
+        int[] values = new int[sizeof() / 4];
+        registers.asIntBuffer().get(values);
+        return new HyperLogLog(log2m, new RegisterSet(count, values));
+    }
+
+    ByteBuffer registers()
+    {
+        return registers;
+    }
+}
@@ -43,6 +43,29 @@ public interface ICardinality
      */
     boolean offerHashed(int hashedInt);
 
+    /**
+     * Offer a batch of hashed long values, with the same result as offering each of them in
+     * turn with {@link #offerHashed(long)}.  Implementations check their state once per batch
+     * rather than once per value.
+     *
+     * @param hashedLongs - the hashes of the items to offer to the estimator
+     * @param offset      - index of the first hash to offer
+     * @param length      - number of hashes to offer
+     * @return false if the value returned by cardinality() is unaffected by all of the offered hashes
+     */
+    boolean offerHashed(long[] hashedLongs, int offset, int length);
+
+    /**
+     * Offer a batch of hashed int values, with the same result as offering each of them in
+     * turn with {@link #offerHashed(int)}.
+     *
+     * @param hashedInts - the hashes of the items to offer to the estimator
+     * @param offset     - index of the first hash to offer
+     * @param length     - number of hashes to offer
+     * @return false if the value returned by cardinality() is unaffected by all of the offered hashes
+     */
+    boolean offerHashed(int[] hashedInts, int offset, int length);
+
     /**
      * @return the number of unique elements in the stream or an estimate thereof
      */
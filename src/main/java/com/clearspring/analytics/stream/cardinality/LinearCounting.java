@@ -80,22 +80,47 @@ public class LinearCounting implements ICardinality
     @Override
     public boolean offerHashed(long hashedLong)
     {
-        throw new UnsupportedOperationException();
+        return setBit((int) ((hashedLong & Long.MAX_VALUE) % length));
     }
 
     @Override
     public boolean offerHashed(int hashedInt)
     {
-        throw new UnsupportedOperationException();
+        return setBit((int) ((hashedInt & 0xFFFFFFFFL) % (long) length));
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashedLongs, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            modified |= setBit((int) ((hashedLongs[i] & Long.MAX_VALUE) % this.length));
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int[] hashedInts, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            modified |= setBit((int) ((hashedInts[i] & 0xFFFFFFFFL) % (long) this.length));
+        }
+        return modified;
     }
 
     @Override
     public boolean offer(Object o)
+    {
+        return offerHashed(MurmurHash.hash(o));
+    }
+
+    private boolean setBit(int bit)
     {
         boolean modified = false;
 
-        long hash = (long) MurmurHash.hash(o);
-        int bit = (int) ((hash & 0xFFFFFFFFL) % (long) length);
         int i = bit / 8;
         byte b = map[i];
         byte mask = (byte) (1 << (bit % 8));
@@ -121,30 +121,68 @@ public class LogLog implements ICardinality
     @Override
     public boolean offerHashed(long hashedLong)
     {
-        throw new UnsupportedOperationException();
+        int j = (int) (hashedLong >>> (Long.SIZE - k));
+        byte r = (byte) (Long.numberOfLeadingZeros((hashedLong << k) | (1 << (k - 1))) + 1);
+        return updateRegister(j, r);
     }
 
     @Override
     public boolean offerHashed(int hashedInt)
     {
-        boolean modified = false;
         int j = hashedInt >>> (Integer.SIZE - k);
         byte r = (byte) (Integer.numberOfLeadingZeros((hashedInt << k) | (1 << (k - 1))) + 1);
+        return updateRegister(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashedLongs, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            long hashedLong = hashedLongs[i];
+            int j = (int) (hashedLong >>> (Long.SIZE - k));
+            byte r = (byte) (Long.numberOfLeadingZeros((hashedLong << k) | (1 << (k - 1))) + 1);
+            modified |= updateRegister(j, r);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int[] hashedInts, int offset, int length)
+    {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++)
+        {
+            int hashedInt = hashedInts[i];
+            int j = hashedInt >>> (Integer.SIZE - k);
+            byte r = (byte) (Integer.numberOfLeadingZeros((hashedInt << k) | (1 << (k - 1))) + 1);
+            modified |= updateRegister(j, r);
+        }
+        return modified;
+    }
+
+    /**
+     * Raises bucket j to r if it is lower, keeping Rsum up to date.
+     *
+     * @return true if the bucket changed
+     */
+    protected boolean updateRegister(int j, byte r)
+    {
         if (M[j] < r)
         {
             Rsum += r - M[j];
             M[j] = r;
-            modified = true;
+            return true;
         }
-
-        return modified;
+        return false;
     }
 
     @Override
     public boolean offer(Object o)
     {
         int x = MurmurHash.hash(o);
-        return offer(x);
+        return offerHashed(x);
     }
 
     /**
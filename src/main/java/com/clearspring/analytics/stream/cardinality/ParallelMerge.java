@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.clearspring.analytics.util.TreeReduction;
+
+/**
+ * Merges many estimators in parallel, as a {@link TreeReduction} on an executor.
+ * <p/>
+ * Each task merges up to {@link #FAN_IN} estimators with a single call to
+ * {@link ICardinality#merge(ICardinality...)}, which for {@link HyperLogLog} and
+ * {@link HyperLogLogPlus} makes one pass over the registers whatever the number of
+ * estimators, and for HyperLogLogPlus handles any mix of sparse and normal estimators.
+ * Above the first level the estimators being merged are the tasks' own results, so
+ * HyperLogLog and HyperLogLogPlus ones are merged into the first of them instead of into a
+ * new estimator, and only one set of registers is allocated per task of the first level.
+ * Those of different precisions are folded to the lowest, as by a sequential merge.
+ * <p/>
+ * The result is the same as merging the estimators sequentially.
+ */
+public class ParallelMerge
+{
+    /**
+     * Number of estimators merged by each task.
+     */
+    public static final int FAN_IN = 64;
+
+    private ParallelMerge()
+    {
+    }
+
+    /**
+     * @param executor   runs the merge tasks
+     * @param estimators at least one estimator, all of the same class and size
+     * @return a new estimator for the combined streams, none of the estimators is modified
+     * @throws CardinalityMergeException if the estimators cannot be merged
+     * @throws InterruptedException      if interrupted while waiting for the tasks
+     */
+    public static ICardinality merge(ExecutorService executor, List<? extends ICardinality> estimators)
+            throws CardinalityMergeException, InterruptedException
+    {
+        return new Reduction(executor).reduce(estimators);
+    }
+
+    private static class Reduction extends TreeReduction<ICardinality, CardinalityMergeException>
+    {
+        Reduction(ExecutorService executor)
+        {
+            super(executor, FAN_IN);
+        }
+
+        @Override
+        protected ICardinality combine(List<ICardinality> estimators, boolean owned) throws CardinalityMergeException
+        {
+            ICardinality first = estimators.get(0);
+            ICardinality[] rest = estimators.subList(1, estimators.size()).toArray(new ICardinality[estimators.size() - 1]);
+            if (owned)
+            {
+                if (first instanceof HyperLogLog && canAddAll(HyperLogLog.class, first, rest))
+                {
+                    ((HyperLogLog) first).addAll(Arrays.copyOf(rest, rest.length, HyperLogLog[].class));
+                    return first;
+                }
+                if (first instanceof HyperLogLogPlus && canAddAll(HyperLogLogPlus.class, first, rest))
+                {
+                    ((HyperLogLogPlus) first).addAll(Arrays.copyOf(rest, rest.length, HyperLogLogPlus[].class));
+                    return first;
+                }
+                if (rest.length == 0)
+                {
+                    return first;
+                }
+            }
+            return first.merge(rest);
+        }
+
+        /**
+         * addAll folds the others to the precision of the one added to, but cannot lower it.
+         */
+        private static boolean canAddAll(Class<?> type, ICardinality first, ICardinality[] estimators)
+        {
+            for (ICardinality estimator : estimators)
+            {
+                if (!type.isInstance(estimator) || estimator.sizeof() < first.sizeof())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
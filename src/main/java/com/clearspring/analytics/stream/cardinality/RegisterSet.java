@@ -16,6 +16,9 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
 public class RegisterSet
 {
     public final static int LOG2_BITS_PER_WORD = 6;
@@ -26,6 +29,12 @@ public class RegisterSet
 
     private final int[] M;
 
+    /**
+     * Number of registers holding each possible register value.
+     * Null unless {@link #trackHistogram()} has been called.
+     */
+    private int[] histogram;
+
     public RegisterSet(int count)
     {
         this(count, null);
@@ -34,22 +43,10 @@ public class RegisterSet
     public RegisterSet(int count, int[] initialValues)
     {
         this.count = count;
-        int bits = getBits(count);
 
         if (initialValues == null)
         {
-            if (bits == 0)
-            {
-                this.M = new int[1];
-            }
-            else if (bits % Integer.SIZE == 0)
-            {
-                this.M = new int[bits];
-            }
-            else
-            {
-                this.M = new int[bits + 1];
-            }
+            this.M = new int[getSizeForCount(count)];
         }
         else
         {
@@ -63,11 +60,36 @@ public class RegisterSet
         return count / LOG2_BITS_PER_WORD;
     }
 
+    /**
+     * @return the number of words a new register set with <code>count</code> registers uses
+     */
+    public static int getSizeForCount(int count)
+    {
+        int bits = getBits(count);
+        if (bits == 0)
+        {
+            return 1;
+        }
+        else if (bits % Integer.SIZE == 0)
+        {
+            return bits;
+        }
+        else
+        {
+            return bits + 1;
+        }
+    }
+
     public void set(int position, int value)
     {
         int bucketPos = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
+        int oldWord = this.M[bucketPos];
         this.M[bucketPos] = (this.M[bucketPos] & ~(0x1f << shift)) | (value << shift);
+        if (histogram != null)
+        {
+            updateHistogram(oldWord, this.M[bucketPos], shift);
+        }
     }
 
     public int get(int position)
@@ -87,7 +109,12 @@ public class RegisterSet
         long curVal = this.M[bucket] & mask;
         long newVal = value << shift;
         if (curVal < newVal) {
+            int oldWord = this.M[bucket];
             this.M[bucket] = (int)((this.M[bucket] & ~mask) | newVal);
+            if (histogram != null)
+            {
+                updateHistogram(oldWord, this.M[bucket], shift);
+            }
             return true;
         } else {
             return false;
@@ -98,19 +125,219 @@ public class RegisterSet
     {
         for (int bucket = 0; bucket < M.length; bucket++)
         {
-            int word = 0;
-            for (int j = 0; j < LOG2_BITS_PER_WORD; j++)
+            int word = max(this.M[bucket], that.M[bucket]);
+            if (histogram != null && word != this.M[bucket])
             {
-                int mask = 0x1f << (REGISTER_SIZE * j);
-
-                int thisVal = (this.M[bucket] & mask);
-                int thatVal = (that.M[bucket] & mask);
-                word |= (thisVal < thatVal) ? thatVal : thisVal;
+                updateHistogram(this.M[bucket], word);
             }
             this.M[bucket] = word;
         }
     }
 
+    /**
+     * Number of words merged from every set before moving on, sized so the block of this
+     * set being merged into stays in the L1 cache while each of the others streams past it.
+     */
+    private static final int MERGE_BLOCK_SIZE = 1024;
+
+    /**
+     * Merges all of the given sets into this one.  This is equivalent to merging them one at
+     * a time, but walks this set's words once, in cache sized blocks, rather than once per set.
+     */
+    public void merge(RegisterSet... those)
+    {
+        int[] before = histogram != null ? new int[Math.min(MERGE_BLOCK_SIZE, M.length)] : null;
+        for (int from = 0; from < M.length; from += MERGE_BLOCK_SIZE)
+        {
+            int to = Math.min(from + MERGE_BLOCK_SIZE, M.length);
+            if (before != null)
+            {
+                System.arraycopy(M, from, before, 0, to - from);
+            }
+            for (RegisterSet that : those)
+            {
+                int[] thatM = that.M;
+                for (int bucket = from; bucket < to; bucket++)
+                {
+                    M[bucket] = max(M[bucket], thatM[bucket]);
+                }
+            }
+            if (before != null)
+            {
+                for (int bucket = from; bucket < to; bucket++)
+                {
+                    if (before[bucket - from] != M[bucket])
+                    {
+                        updateHistogram(before[bucket - from], M[bucket]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges serialized register sets into this one, reading their words where they lie.
+     * Each buffer must hold as many words as this set, from index 0 and in the byte order
+     * the buffer is set to; the buffers' positions are not changed.
+     * <p/>
+     * The words are bulk copied a block at a time into a scratch array that is reused for
+     * every buffer: a bulk get converts the byte order far faster than getting words one at a
+     * time, and merging from an int array lets the JIT vectorize the loop.
+     */
+    public void merge(ByteBuffer... those)
+    {
+        IntBuffer[] sources = new IntBuffer[those.length];
+        for (int i = 0; i < those.length; i++)
+        {
+            ByteBuffer that = those[i].duplicate().order(those[i].order());
+            that.clear();
+            sources[i] = that.asIntBuffer();
+        }
+        // indexed like M, which keeps the merge loop simple enough to vectorize
+        int[] scratch = new int[M.length];
+        int[] before = histogram != null ? new int[Math.min(MERGE_BLOCK_SIZE, M.length)] : null;
+        for (int from = 0; from < M.length; from += MERGE_BLOCK_SIZE)
+        {
+            int to = Math.min(from + MERGE_BLOCK_SIZE, M.length);
+            if (before != null)
+            {
+                System.arraycopy(M, from, before, 0, to - from);
+            }
+            for (IntBuffer source : sources)
+            {
+                source.get(scratch, from, to - from);
+                for (int bucket = from; bucket < to; bucket++)
+                {
+                    M[bucket] = max(M[bucket], scratch[bucket]);
+                }
+            }
+            if (before != null)
+            {
+                for (int bucket = from; bucket < to; bucket++)
+                {
+                    if (before[bucket - from] != M[bucket])
+                    {
+                        updateHistogram(before[bucket - from], M[bucket]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers 0, 2 and 4 of a word, and the free bit above each of them, which belongs to
+     * the odd register that follows.
+     */
+    private static final int EVEN_REGISTERS = 0x1f | 0x1f << 10 | 0x1f << 20;
+    private static final int EVEN_GUARDS = EVEN_REGISTERS + (1 | 1 << 10 | 1 << 20);
+
+    /**
+     * Registers 1, 3 and 5 of a word, and the free bit above each of them, which belongs to
+     * the even register that follows or, for register 5, to the unused top of the word.
+     */
+    private static final int ODD_REGISTERS = EVEN_REGISTERS << REGISTER_SIZE;
+    private static final int ODD_GUARDS = EVEN_GUARDS << REGISTER_SIZE;
+
+    /**
+     * Register wise maximum of two words, computed on all six registers at once.
+     */
+    static int max(int x, int y)
+    {
+        return max(x & EVEN_REGISTERS, y & EVEN_REGISTERS, EVEN_GUARDS)
+               | max(x & ODD_REGISTERS, y & ODD_REGISTERS, ODD_GUARDS);
+    }
+
+    /**
+     * Every other register leaves a free bit above each one.  Setting that bit in x and
+     * subtracting y lets each register compute 32 + x - y without borrowing from its neighbor,
+     * and the bit survives exactly where x >= y.  Turning the surviving bits into register
+     * masks then selects x or y for every register without branching.
+     */
+    private static int max(int x, int y, int guards)
+    {
+        int ge = ((x | guards) - y) & guards;
+        int mask = ge - (ge >>> REGISTER_SIZE);
+        return (x & mask) | (y & ~mask);
+    }
+
+    /**
+     * Start maintaining a histogram of the register values.  From then on set, updateIfGreater
+     * and merge keep it up to date, so estimators can read the distribution of register values
+     * in constant time instead of scanning every register.
+     */
+    public void trackHistogram()
+    {
+        if (histogram == null)
+        {
+            histogram = buildHistogram();
+        }
+    }
+
+    public boolean isTrackingHistogram()
+    {
+        return histogram != null;
+    }
+
+    /**
+     * @return number of registers holding each value, indexed by value.  This is the live
+     *         histogram when tracking, otherwise it is computed by scanning the registers.
+     *         Callers must not modify it.
+     */
+    int[] histogram()
+    {
+        return histogram != null ? histogram : buildHistogram();
+    }
+
+    private int[] buildHistogram()
+    {
+        int[] h = new int[1 << REGISTER_SIZE];
+        for (int j = 0; j < count; j++)
+        {
+            h[get(j)]++;
+        }
+        return h;
+    }
+
+    private void updateHistogram(int oldWord, int newWord, int shift)
+    {
+        histogram[(oldWord >>> shift) & 0x1f]--;
+        histogram[(newWord >>> shift) & 0x1f]++;
+    }
+
+    private void updateHistogram(int oldWord, int newWord)
+    {
+        for (int j = 0; j < LOG2_BITS_PER_WORD; j++)
+        {
+            int shift = REGISTER_SIZE * j;
+            if (((oldWord ^ newWord) >>> shift & 0x1f) != 0)
+            {
+                updateHistogram(oldWord, newWord, shift);
+            }
+        }
+    }
+
+    /**
+     * Writes the words at the buffer's position in the buffer's byte order and advances the
+     * position past them, without copying them first.
+     */
+    void writeTo(ByteBuffer out)
+    {
+        out.asIntBuffer().put(M);
+        out.position(out.position() + M.length * 4);
+    }
+
+    /**
+     * Reads <code>words</code> words written by {@link #writeTo(ByteBuffer)} and advances the
+     * position past them.
+     */
+    static RegisterSet readFrom(ByteBuffer in, int count, int words)
+    {
+        int[] values = new int[words];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + words * 4);
+        return new RegisterSet(count, values);
+    }
+
     public int[] bits()
     {
         int[] copy = new int[size];
@@ -15,14 +15,14 @@
 package com.clearspring.analytics.stream.frequency;
 
 import com.clearspring.analytics.stream.membership.Filter;
+import com.clearspring.analytics.util.TreeReduction;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Count-Min Sketch datastructure.
@@ -32,6 +32,10 @@ import java.util.Random;
 public class CountMinSketch implements IFrequency
 {
     public static final long PRIME_MODULUS = (1L << 31) - 1;
+    /**
+     * Number of sketches merged by each task of {@link #merge(ExecutorService, List)}.
+     */
+    public static final int MERGE_FAN_IN = 64;
     private int depth;
     private int width;
     private long[][] table;
@@ -200,95 +204,149 @@ public class CountMinSketch implements IFrequency
             int width = estimators[0].width;
             long[] hashA = Arrays.copyOf(estimators[0].hashA, estimators[0].hashA.length);
 
-            long[][] table = new long[depth][width];
-            int size = 0;
-
-            for (CountMinSketch estimator : estimators)
-            {
-                if (estimator.depth != depth)
-                {
-                    throw new CMSMergeException("Cannot merge estimators of different depth");
-                }
-                if (estimator.width != width)
-                {
-                    throw new CMSMergeException("Cannot merge estimators of different width");
-                }
-                if (!Arrays.equals(estimator.hashA, hashA))
-                {
-                    throw new CMSMergeException("Cannot merge estimators of different seed");
-                }
-
-                for (int i = 0; i < table.length; i++)
-                {
-                    for (int j = 0; j < table[i].length; j++)
-                    {
-                        table[i][j] += estimator.table[i][j];
-                    }
-                }
-                size += estimator.size;
-            }
-
-            merged = new CountMinSketch(depth, width, size, hashA, table);
+            merged = new CountMinSketch(depth, width, 0, hashA, new long[depth][width]);
+            merged.addAll(estimators);
         }
 
         return merged;
     }
 
-    public static byte[] serialize(CountMinSketch sketch)
+    /**
+     * Merges count min sketches in parallel, as a {@link TreeReduction} on the executor.
+     * Each task merges up to {@link #MERGE_FAN_IN} sketches, and the tasks above the first
+     * level add into the table of the first of their inputs instead of allocating a new one.
+     *
+     * @param estimators at least one sketch, none of them is modified
+     * @return the same as {@link #merge(CountMinSketch...)}
+     * @throws FrequencyMergeException if estimators are not mergeable (same depth, width and seed)
+     * @throws InterruptedException    if interrupted while waiting for the tasks
+     */
+    public static CountMinSketch merge(ExecutorService executor, List<CountMinSketch> estimators)
+            throws FrequencyMergeException, InterruptedException
     {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream s = new DataOutputStream(bos);
-        try
+        return new TreeReduction<CountMinSketch, FrequencyMergeException>(executor, MERGE_FAN_IN)
         {
-            s.writeLong(sketch.size);
-            s.writeInt(sketch.depth);
-            s.writeInt(sketch.width);
-            for (int i = 0; i < sketch.depth; ++i)
+            @Override
+            protected CountMinSketch combine(List<CountMinSketch> sketches, boolean owned) throws CMSMergeException
             {
-                s.writeLong(sketch.hashA[i]);
-                for (int j = 0; j < sketch.width; ++j)
+                CountMinSketch[] array = sketches.toArray(new CountMinSketch[sketches.size()]);
+                if (!owned)
                 {
-                    s.writeLong(sketch.table[i][j]);
+                    return merge(array);
                 }
+                array[0].addAll(Arrays.copyOfRange(array, 1, array.length));
+                return array[0];
             }
-            return bos.toByteArray();
-        }
-        catch (IOException e)
-        {
-            // Shouldn't happen
-            throw new RuntimeException(e);
-        }
+        }.reduce(estimators);
     }
 
-    public static CountMinSketch deserialize(byte[] data)
+    /**
+     * Adds the counts of the other sketches to this one.
+     *
+     * @throws CMSMergeException if any of the others has a different depth, width or seed,
+     *                           in which case this sketch is left unchanged
+     */
+    private void addAll(CountMinSketch... others) throws CMSMergeException
     {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        DataInputStream s = new DataInputStream(bis);
-        try
+        for (CountMinSketch other : others)
         {
-            CountMinSketch sketch = new CountMinSketch();
-            sketch.size = s.readLong();
-            sketch.depth = s.readInt();
-            sketch.width = s.readInt();
-            sketch.eps = 2.0 / sketch.width;
-            sketch.confidence = 1 - 1 / Math.pow(2, sketch.depth);
-            sketch.hashA = new long[sketch.depth];
-            sketch.table = new long[sketch.depth][sketch.width];
-            for (int i = 0; i < sketch.depth; ++i)
+            if (other.depth != depth)
+            {
+                throw new CMSMergeException("Cannot merge estimators of different depth");
+            }
+            if (other.width != width)
             {
-                sketch.hashA[i] = s.readLong();
-                for (int j = 0; j < sketch.width; ++j)
+                throw new CMSMergeException("Cannot merge estimators of different width");
+            }
+            if (!Arrays.equals(other.hashA, hashA))
+            {
+                throw new CMSMergeException("Cannot merge estimators of different seed");
+            }
+        }
+
+        for (CountMinSketch other : others)
+        {
+            for (int i = 0; i < table.length; i++)
+            {
+                for (int j = 0; j < table[i].length; j++)
                 {
-                    sketch.table[i][j] = s.readLong();
+                    table[i][j] += other.table[i][j];
                 }
             }
-            return sketch;
+            size += other.size;
         }
-        catch (IOException e)
+    }
+
+    public static byte[] serialize(CountMinSketch sketch)
+    {
+        byte[] bytes = new byte[sketch.serializedSize()];
+        sketch.writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    public static CountMinSketch deserialize(byte[] data)
+    {
+        return readFrom(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return the number of bytes {@link #serialize(CountMinSketch)} and
+     *         {@link #writeTo(ByteBuffer)} produce
+     */
+    public int serializedSize()
+    {
+        return 16 + depth * (width + 1) * 8;
+    }
+
+    /**
+     * Writes the bytes {@link #serialize(CountMinSketch)} returns at the buffer's position,
+     * whatever the buffer's byte order, and advances the position past them.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes
+     *                                          remain, in which case the position is unchanged
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        ByteBuffer out = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        out.putLong(size);
+        out.putInt(depth);
+        out.putInt(width);
+        for (int i = 0; i < depth; ++i)
+        {
+            out.putLong(hashA[i]);
+            out.asLongBuffer().put(table[i]);
+            out.position(out.position() + width * 8);
+        }
+        buffer.position(out.position());
+    }
+
+    /**
+     * Reads a sketch written by {@link #writeTo(ByteBuffer)} or
+     * {@link #serialize(CountMinSketch)} at the buffer's position, whatever the buffer's byte
+     * order, and advances the position past it.
+     *
+     * @throws java.nio.BufferUnderflowException if the buffer ends before the sketch does, in
+     *                                           which case the position is unchanged
+     */
+    public static CountMinSketch readFrom(ByteBuffer buffer)
+    {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        CountMinSketch sketch = new CountMinSketch();
+        sketch.size = in.getLong();
+        sketch.depth = in.getInt();
+        sketch.width = in.getInt();
+        sketch.eps = 2.0 / sketch.width;
+        sketch.confidence = 1 - 1 / Math.pow(2, sketch.depth);
+        sketch.hashA = new long[sketch.depth];
+        sketch.table = new long[sketch.depth][sketch.width];
+        for (int i = 0; i < sketch.depth; ++i)
         {
-            // Shouldn't happen
-            throw new RuntimeException(e);
+            sketch.hashA[i] = in.getLong();
+            in.asLongBuffer().get(sketch.table[i]);
+            in.position(in.position() + sketch.width * 8);
         }
+        buffer.position(in.position());
+        return sketch;
     }
 
     @SuppressWarnings("serial")
@@ -1,10 +1,7 @@
 package com.clearspring.analytics.stream.quantile;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -351,52 +348,72 @@ public class QDigest implements IQuantileEstimator
 
     public static byte[] serialize(QDigest d)
     {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream s = new DataOutputStream(bos);
-        try
-        {
-            s.writeLong(d.size);
-            s.writeDouble(d.compressionFactor);
-            s.writeLong(d.capacity);
-            s.writeInt(d.node2count.size());
-            for (long k : d.node2count.keySet())
-            {
-                s.writeLong(k);
-                s.writeLong(d.node2count.get(k));
-            }
-            return bos.toByteArray();
-        }
-        catch (IOException e)
-        {
-            // Should never happen
-            throw new RuntimeException(e);
-        }
+        byte[] bytes = new byte[d.serializedSize()];
+        d.writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
     }
 
     public static QDigest deserialize(byte[] b)
     {
-        ByteArrayInputStream bis = new ByteArrayInputStream(b);
-        DataInputStream s = new DataInputStream(bis);
-        try
+        return readFrom(ByteBuffer.wrap(b));
+    }
+
+    /**
+     * @return the number of bytes {@link #serialize(QDigest)} and {@link #writeTo(ByteBuffer)}
+     *         produce
+     */
+    public int serializedSize()
+    {
+        return 28 + node2count.size() * 16;
+    }
+
+    /**
+     * Writes the bytes {@link #serialize(QDigest)} returns at the buffer's position, whatever
+     * the buffer's byte order, and advances the position past them.
+     *
+     * @throws java.nio.BufferOverflowException if fewer than {@link #serializedSize()} bytes
+     *                                          remain, in which case the position is unchanged
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        ByteBuffer out = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        out.putLong(size);
+        out.putDouble(compressionFactor);
+        out.putLong(capacity);
+        out.putInt(node2count.size());
+        for (Map.Entry<Long, Long> entry : node2count.entrySet())
         {
-            long size = s.readLong();
-            double compressionFactor = s.readLong();
-            long capacity = s.readLong();
-            int count = s.readInt();
-            QDigest d = new QDigest(compressionFactor);
-            d.size = size;
-            d.capacity = capacity;
-            for (int i = 0; i < count; ++i)
-            {
-                long k = s.readLong();
-                long n = s.readLong();
-                d.node2count.put(k, n);
-            }
-            return d;
+            out.putLong(entry.getKey());
+            out.putLong(entry.getValue());
         }
-        catch (IOException e)
+        buffer.position(out.position());
+    }
+
+    /**
+     * Reads a digest written by {@link #writeTo(ByteBuffer)} or {@link #serialize(QDigest)} at
+     * the buffer's position, whatever the buffer's byte order, and advances the position past
+     * it.
+     *
+     * @throws java.nio.BufferUnderflowException if the buffer ends before the digest does, in
+     *                                           which case the position is unchanged
+     */
+    public static QDigest readFrom(ByteBuffer buffer)
+    {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        long size = in.getLong();
+        double compressionFactor = in.getDouble();
+        long capacity = in.getLong();
+        int count = in.getInt();
+        QDigest d = new QDigest(compressionFactor);
+        d.size = size;
+        d.capacity = capacity;
+        for (int i = 0; i < count; ++i)
         {
-            throw new RuntimeException(e);
+            long k = in.getLong();
+            long n = in.getLong();
+            d.node2count.put(k, n);
         }
+        buffer.position(in.position());
+        return d;
     }
 }
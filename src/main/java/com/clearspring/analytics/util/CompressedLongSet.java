@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compact set of 64 bit hashes, laid out as in a Roaring bitmap: the values are split into
+ * containers by their leading bits, the key, and each container holds only the remaining bits
+ * of its values, as a sorted array.
+ * <p/>
+ * Unlike the 32 bit integers of a Roaring bitmap, hashes are spread evenly over a universe far
+ * too large for any container to ever be dense enough for a bitmap, so every container is an
+ * array, and the number of key bits grows with the set instead of being fixed at 16.  It starts
+ * at 0, one container, and each time the containers average more than 256 values one more bit
+ * moves into the key and the containers split in two.  Each value is stored in the fewest
+ * whole bytes that hold the bits past the key, 7 once there are 256 containers, 6 from 65536.
+ * With the per container overhead that is about 8 to 9 bytes a value in memory, and as little
+ * as the packed values themselves serialized.
+ * <p/>
+ * Adding a value is a binary search and an insertion within one container, and the union of
+ * two sets is a linear merge of their sorted values.
+ */
+public class CompressedLongSet
+{
+    /**
+     * Average number of values per container above which the containers are split.
+     */
+    private static final int MAX_AVERAGE = 256;
+    private static final int MAX_KEY_BITS = 16;
+
+    private int keyBits;
+    /**
+     * Bytes per value, enough for the 64 - keyBits bits past the key.
+     */
+    private int width;
+    /**
+     * Indexed by key, null while empty.
+     */
+    private byte[][] containers;
+    private int[] sizes;
+    private int size;
+
+    public CompressedLongSet()
+    {
+        setKeyBits(0);
+    }
+
+    private void setKeyBits(int keyBits)
+    {
+        this.keyBits = keyBits;
+        width = Long.SIZE / Byte.SIZE - keyBits / Byte.SIZE;
+        containers = new byte[1 << keyBits][];
+        sizes = new int[1 << keyBits];
+    }
+
+    private int key(long value)
+    {
+        return keyBits == 0 ? 0 : (int) (value >>> (Long.SIZE - keyBits));
+    }
+
+    /**
+     * @return the low bytes of value, as stored
+     */
+    private long low(long value)
+    {
+        return width == Long.SIZE / Byte.SIZE ? value : value & ((1L << (width * Byte.SIZE)) - 1);
+    }
+
+    private long value(int key, long low)
+    {
+        return keyBits == 0 ? low : ((long) key << (Long.SIZE - keyBits)) | low;
+    }
+
+    /**
+     * @return true if the value was not in the set already
+     */
+    public boolean add(long value)
+    {
+        int key = key(value);
+        long low = low(value);
+        byte[] container = containers[key];
+        int n = sizes[key];
+        int index = search(container, n, low);
+        if (index >= 0)
+        {
+            return false;
+        }
+        index = -index - 1;
+
+        if (container == null)
+        {
+            container = containers[key] = new byte[width * 4];
+        }
+        else if ((n + 1) * width > container.length)
+        {
+            container = containers[key] = Arrays.copyOf(container, (n + 1 + (n >> 1)) * width);
+        }
+        System.arraycopy(container, index * width, container, (index + 1) * width, (n - index) * width);
+        write(container, index, low);
+        sizes[key]++;
+        size++;
+
+        if (size > MAX_AVERAGE << keyBits && keyBits < MAX_KEY_BITS)
+        {
+            rebuild(toArray(), size);
+        }
+        return true;
+    }
+
+    public boolean contains(long value)
+    {
+        int key = key(value);
+        return search(containers[key], sizes[key], low(value)) >= 0;
+    }
+
+    /**
+     * Adds all the values of the other set, in a single merge of the two sorted sets.
+     */
+    public void addAll(CompressedLongSet other)
+    {
+        long[] a = toArray();
+        long[] b = other.toArray();
+        long[] union = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length)
+        {
+            int c = compareUnsigned(a[i], b[j]);
+            if (c <= 0)
+            {
+                union[n++] = a[i++];
+                if (c == 0)
+                {
+                    j++;
+                }
+            }
+            else
+            {
+                union[n++] = b[j++];
+            }
+        }
+        while (i < a.length)
+        {
+            union[n++] = a[i++];
+        }
+        while (j < b.length)
+        {
+            union[n++] = b[j++];
+        }
+        rebuild(union, n);
+    }
+
+    /**
+     * Replaces the contents with the first n of the given values, which are sorted as
+     * unsigned and distinct, with as many key bits as they need.
+     */
+    private void rebuild(long[] values, int n)
+    {
+        int bits = 0;
+        while (n > MAX_AVERAGE << bits && bits < MAX_KEY_BITS)
+        {
+            bits++;
+        }
+        setKeyBits(bits);
+        for (int i = 0; i < n; i++)
+        {
+            sizes[key(values[i])]++;
+        }
+        for (int key = 0; key < sizes.length; key++)
+        {
+            if (sizes[key] > 0)
+            {
+                containers[key] = new byte[sizes[key] * width];
+            }
+        }
+        // the values are sorted, so each container fills in order
+        int[] filled = new int[sizes.length];
+        for (int i = 0; i < n; i++)
+        {
+            int key = key(values[i]);
+            write(containers[key], filled[key]++, low(values[i]));
+        }
+        size = n;
+    }
+
+    /**
+     * @return the index of low in the container, or -(insertion point) - 1 if it is not there
+     */
+    private int search(byte[] container, int n, long low)
+    {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int c = compareUnsigned(read(container, mid), low);
+            if (c < 0)
+            {
+                lo = mid + 1;
+            }
+            else if (c > 0)
+            {
+                hi = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private static int compareUnsigned(long a, long b)
+    {
+        a ^= Long.MIN_VALUE;
+        b ^= Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private long read(byte[] container, int index)
+    {
+        long low = 0;
+        for (int i = index * width, end = i + width; i < end; i++)
+        {
+            low = (low << Byte.SIZE) | (container[i] & 0xff);
+        }
+        return low;
+    }
+
+    private void write(byte[] container, int index, long low)
+    {
+        for (int i = index * width + width - 1, end = index * width; i >= end; i--)
+        {
+            container[i] = (byte) low;
+            low >>>= Byte.SIZE;
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the values, sorted as unsigned
+     */
+    public long[] toArray()
+    {
+        long[] values = new long[size];
+        int i = 0;
+        for (int key = 0; key < containers.length; key++)
+        {
+            for (int j = 0; j < sizes[key]; j++)
+            {
+                values[i++] = value(key, read(containers[key], j));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes the number of key bits and of values, the number of values in each container and
+     * then the packed values of each container.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeByte(keyBits);
+        Varint.writeUnsignedVarInt(size, out);
+        for (int n : sizes)
+        {
+            Varint.writeUnsignedVarInt(n, out);
+        }
+        for (int key = 0; key < containers.length; key++)
+        {
+            if (sizes[key] > 0)
+            {
+                out.write(containers[key], 0, sizes[key] * width);
+            }
+        }
+    }
+
+    public static CompressedLongSet readFrom(DataInput in) throws IOException
+    {
+        CompressedLongSet set = new CompressedLongSet();
+        int keyBits = in.readByte();
+        if (keyBits < 0 || keyBits > MAX_KEY_BITS)
+        {
+            throw new IOException("Invalid number of key bits: " + keyBits);
+        }
+        set.setKeyBits(keyBits);
+        set.size = Varint.readUnsignedVarInt(in);
+        for (int key = 0; key < set.sizes.length; key++)
+        {
+            set.sizes[key] = Varint.readUnsignedVarInt(in);
+        }
+        for (int key = 0; key < set.sizes.length; key++)
+        {
+            if (set.sizes[key] > 0)
+            {
+                set.containers[key] = new byte[set.sizes[key] * set.width];
+                in.readFully(set.containers[key]);
+            }
+        }
+        return set;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.util;
+
+/**
+ * A set of primitive longs: an open addressing hash table with linear probing, kept at most
+ * three quarters full, so each value takes 11 to 22 bytes and nothing is boxed.  0 marks an
+ * empty slot, and is tracked apart from the table when it is in the set.
+ * <p/>
+ * Values are spread over the table by a multiplicative hash of all their bits, so values that
+ * are hashes already, even weak ones, probe well.
+ */
+public class LongHashSet
+{
+    private static final int MIN_CAPACITY = 8;
+    private static final long SPREAD = 0x9e3779b97f4a7c15L;
+
+    private long[] table;
+    private int shift;
+    private int size;
+    private boolean containsZero;
+
+    public LongHashSet()
+    {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize number of values the set can hold before it grows
+     */
+    public LongHashSet(int expectedSize)
+    {
+        int capacity = MIN_CAPACITY;
+        while (capacity - (capacity >>> 2) < expectedSize)
+        {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity)
+    {
+        table = new long[capacity];
+        shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long value)
+    {
+        return (int) ((value * SPREAD) >>> shift);
+    }
+
+    /**
+     * @return true if the value was not in the set already
+     */
+    public boolean add(long value)
+    {
+        if (value == 0)
+        {
+            if (containsZero)
+            {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int mask = table.length - 1;
+        int slot = slot(value);
+        for (long entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask)
+        {
+            if (entry == value)
+            {
+                return false;
+            }
+        }
+        table[slot] = value;
+        size++;
+        if (size > table.length - (table.length >>> 2))
+        {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value)
+    {
+        if (value == 0)
+        {
+            return containsZero;
+        }
+        int mask = table.length - 1;
+        for (int slot = slot(value); table[slot] != 0; slot = (slot + 1) & mask)
+        {
+            if (table[slot] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old = table;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (long entry : old)
+        {
+            if (entry != 0)
+            {
+                int slot = slot(entry);
+                while (table[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = entry;
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the values, in no particular order
+     */
+    public long[] toArray()
+    {
+        long[] values = new long[size];
+        int i = 0;
+        if (containsZero)
+        {
+            values[i++] = 0;
+        }
+        for (long entry : table)
+        {
+            if (entry != 0)
+            {
+                values[i++] = entry;
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reduces a list to a single value with an associative {@link #combine(List, boolean)}, in
+ * parallel, as a tree.
+ * <p/>
+ * The inputs are split into groups of <code>fanIn</code>, each group is combined by a task on
+ * the executor, and the results are grouped and combined again level by level until one is
+ * left.  The calling thread waits for each level to complete before submitting the next, so
+ * no task ever waits on another and any executor, however few threads it has, works.
+ *
+ * @param <T> the type of the values reduced
+ * @param <E> the checked exception combine may throw
+ */
+public abstract class TreeReduction<T, E extends Exception>
+{
+    private final ExecutorService executor;
+    private final int fanIn;
+
+    /**
+     * @param executor runs the combine tasks
+     * @param fanIn    the number of values combined by each task, at least 2
+     */
+    protected TreeReduction(ExecutorService executor, int fanIn)
+    {
+        if (fanIn < 2)
+        {
+            throw new IllegalArgumentException("fanIn must be at least 2");
+        }
+        this.executor = executor;
+        this.fanIn = fanIn;
+    }
+
+    /**
+     * Combines one group of values.
+     *
+     * @param values at least one value
+     * @param owned  true when the values are results of earlier calls made by this reduction,
+     *               rather than the caller's inputs, so the first one may be modified and
+     *               returned instead of allocating a new result
+     */
+    protected abstract T combine(List<T> values, boolean owned) throws E;
+
+    /**
+     * @param values at least one value
+     * @return the combination of all the values
+     * @throws InterruptedException if interrupted while waiting for a level to complete, in
+     *                              which case the tasks still running are cancelled
+     */
+    public T reduce(List<? extends T> values) throws E, InterruptedException
+    {
+        if (values.isEmpty())
+        {
+            throw new IllegalArgumentException("Nothing to reduce");
+        }
+
+        List<T> level = new ArrayList<T>(values);
+        boolean owned = false;
+        while (level.size() > fanIn)
+        {
+            level = reduceLevel(level, owned);
+            owned = true;
+        }
+        return combine(level, owned);
+    }
+
+    private List<T> reduceLevel(List<T> level, final boolean owned) throws E, InterruptedException
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>((level.size() + fanIn - 1) / fanIn);
+        try
+        {
+            for (int from = 0; from < level.size(); from += fanIn)
+            {
+                final List<T> group = level.subList(from, Math.min(from + fanIn, level.size()));
+                futures.add(executor.submit(new Callable<T>()
+                {
+                    @Override
+                    public T call() throws Exception
+                    {
+                        return combine(group, owned);
+                    }
+                }));
+            }
+
+            List<T> next = new ArrayList<T>(futures.size());
+            for (Future<T> future : futures)
+            {
+                next.add(future.get());
+            }
+            return next;
+        }
+        catch (ExecutionException e)
+        {
+            throw this.<E>rethrow(e.getCause());
+        }
+        finally
+        {
+            for (Future<T> future : futures)
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Tasks only run combine, so anything they throw is unchecked or an E.
+     */
+    @SuppressWarnings("unchecked")
+    private <X extends Exception> X rethrow(Throwable cause) throws X
+    {
+        if (cause instanceof RuntimeException)
+        {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        throw (X) cause;
+    }
+}
@@ -21,6 +21,7 @@ package com.clearspring.analytics.util;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -217,6 +218,58 @@ public final class Varint
         return value | (b << i);
     }
 
+    /**
+     * Encodes a value the same way as {@link #writeUnsignedVarInt(int, DataOutput)}, at the
+     * buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer has too little room left
+     */
+    public static void writeUnsignedVarInt(int value, ByteBuffer out)
+    {
+        while ((value & 0xFFFFFF80) != 0L)
+        {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) (value & 0x7F));
+    }
+
+    /**
+     * @return the number of bytes {@link #writeUnsignedVarInt(int, DataOutput)} writes for value
+     */
+    public static int unsignedVarIntSize(int value)
+    {
+        int size = 1;
+        while ((value & 0xFFFFFF80) != 0L)
+        {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Decodes a value at the buffer's position, see {@link #readUnsignedVarInt(DataInput)}.
+     *
+     * @throws java.nio.BufferUnderflowException if the buffer ends in the middle of the value
+     */
+    public static int readUnsignedVarInt(ByteBuffer in)
+    {
+        int value = 0;
+        int i = 0;
+        int b;
+        while (((b = in.get()) & 0x80) != 0)
+        {
+            value |= (b & 0x7F) << i;
+            i += 7;
+            if (i > 35)
+            {
+                throw new IllegalArgumentException("Variable length quantity is too long");
+            }
+        }
+        return value | (b << i);
+    }
+
     public static int readSignedVarInt(byte[] bytes)
     {
         int raw = readUnsignedVarInt(bytes);
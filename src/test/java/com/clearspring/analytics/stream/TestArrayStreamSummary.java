@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestArrayStreamSummary
+{
+    @Test
+    public void testTopK()
+    {
+        ArrayStreamSummary<String> vs = new ArrayStreamSummary<String>(3);
+        String[] stream = {"X", "X", "Y", "Z", "A", "B", "C", "X", "X", "A", "C", "A", "A"};
+        for (String i : stream)
+        {
+            vs.offer(i);
+        }
+        List<Counter<String>> topK = vs.topK(3);
+        for (Counter<String> c : topK)
+        {
+            assertTrue(Arrays.asList("A", "C", "X").contains(c.getItem()));
+        }
+        assertEquals(3, vs.size());
+    }
+
+    @Test
+    public void testMatchesStreamSummary()
+    {
+        Random random = new Random(5);
+        for (int capacity : new int[]{1, 10, 1000})
+        {
+            for (int universe : new int[]{20, 10000})
+            {
+                for (int maxIncrement : new int[]{1, 5, 1000})
+                {
+                    StreamSummary<Integer> expected = new StreamSummary<Integer>(capacity);
+                    ArrayStreamSummary<Integer> actual = new ArrayStreamSummary<Integer>(capacity);
+                    for (int i = 0; i < 50000; i++)
+                    {
+                        // skewed towards small items, with some nulls
+                        Integer item = random.nextInt(100) == 0 ? null : (int) Math.pow(random.nextInt(universe), 2) / universe;
+                        int increment = 1 + random.nextInt(maxIncrement);
+                        assertEquals(expected.offerReturnAll(item, increment), actual.offerReturnAll(item, increment));
+                    }
+                    assertEquals(expected.size(), actual.size());
+                    assertEquals(expected.toString(), actual.toString());
+                    assertEquals(expected.peek(capacity), actual.peek(capacity));
+                    assertEquals(expected.topK(capacity).toString(), actual.topK(capacity).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        StreamSummary<String> expected = new StreamSummary<String>(100);
+        ArrayStreamSummary<String> vs = new ArrayStreamSummary<String>(100);
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++)
+        {
+            String item = Integer.toString(random.nextInt(300));
+            expected.offer(item);
+            vs.offer(item);
+        }
+
+        byte[] bytes = vs.toBytes();
+        assertArrayEquals(expected.toBytes(), bytes);
+        ArrayStreamSummary<String> clone = new ArrayStreamSummary<String>(expected.toBytes());
+        assertEquals(vs.toString(), clone.toString());
+        assertEquals(vs.toString(), new StreamSummary<String>(bytes).toString());
+
+        // carries on where it left off
+        for (int i = 0; i < 1000; i++)
+        {
+            String item = Integer.toString(random.nextInt(300));
+            expected.offer(item);
+            clone.offer(item);
+        }
+        assertEquals(expected.toString(), clone.toString());
+
+        // Empty
+        vs = new ArrayStreamSummary<String>(0);
+        assertEquals(vs.toString(), new ArrayStreamSummary<String>(vs.toBytes()).toString());
+    }
+}
@@ -22,6 +22,9 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -78,6 +81,156 @@ public class TestConcurrentStreamSummary
 		}
 	}
 
+	@Test
+	public void testConcurrentOffers() throws InterruptedException
+	{
+		final int numThreads = 8;
+		final int perThread = 50000;
+		for (final int universe : new int[]{100, 10000})
+		{
+			final ConcurrentStreamSummary<Integer> vs = new ConcurrentStreamSummary<Integer>(1000);
+			final AtomicLong seeds = new AtomicLong();
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++)
+			{
+				threads[t] = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						Random random = new Random(seeds.incrementAndGet());
+						for (int i = 0; i < perThread; i++)
+						{
+							// a few heavy hitters over a long tail
+							vs.offer(random.nextBoolean() ? random.nextInt(5) : random.nextInt(universe), 1 + i % 3);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+
+			// every increment is accounted for, evicted counts carry over to the new items
+			List<ScoredItem<Integer>> all = vs.peekWithScores(Integer.MAX_VALUE);
+			long total = 0;
+			for (ScoredItem<Integer> item : all)
+			{
+				total += item.getCount();
+			}
+			long expected = 0;
+			for (int i = 0; i < perThread; i++)
+			{
+				expected += 1 + i % 3;
+			}
+			assertEquals(numThreads * expected, total);
+			assertEquals(Math.min(universe, 1000), all.size());
+			for (int i = 1; i < all.size(); i++)
+			{
+				assertTrue(all.get(i - 1).getCount() >= all.get(i).getCount());
+			}
+			if (universe <= 1000)
+			{
+				for (ScoredItem<Integer> item : all)
+				{
+					assertEquals(0, item.getError());
+				}
+			}
+			assertTrue(vs.peek(5).containsAll(Arrays.asList(0, 1, 2, 3, 4)));
+		}
+	}
+
+	@Test
+	public void testConcurrentOffersAboveCapacity() throws InterruptedException
+	{
+		// more threads adding items at once than the summary holds
+		final int numThreads = 8;
+		final int perThread = 20000;
+		final ConcurrentStreamSummary<Integer> vs = new ConcurrentStreamSummary<Integer>(2);
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++)
+		{
+			final int offset = t * perThread;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < perThread; i++)
+					{
+						vs.offer(offset + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		// any items kept over capacity are evicted by the next new ones
+		for (int i = 0; i < numThreads; i++)
+		{
+			vs.offer(-1 - i);
+		}
+
+		List<ScoredItem<Integer>> all = vs.peekWithScores(Integer.MAX_VALUE);
+		assertEquals(2, all.size());
+		long total = 0;
+		for (ScoredItem<Integer> item : all)
+		{
+			total += item.getCount();
+		}
+		assertEquals(numThreads * perThread + numThreads, total);
+	}
+
+	@Test
+	public void testPeekWhileIncrementing() throws InterruptedException
+	{
+		final ConcurrentStreamSummary<Integer> vs = new ConcurrentStreamSummary<Integer>(100);
+		for (int i = 0; i < 10; i++)
+		{
+			vs.offer(i);
+		}
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++)
+		{
+			final int seed = t;
+			writers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Random random = new Random(seed);
+					while (!done.get())
+					{
+						vs.offer(random.nextInt(10));
+					}
+				}
+			};
+			writers[t].start();
+		}
+		try
+		{
+			// items being incremented are never missing from a snapshot
+			for (int i = 0; i < 20000; i++)
+			{
+				assertEquals(10, vs.peekWithScores(100).size());
+			}
+		}
+		finally
+		{
+			done.set(true);
+			for (Thread writer : writers)
+			{
+				writer.join();
+			}
+		}
+	}
+
 	@Test
 	public void testGeometricDistribution()
 	{
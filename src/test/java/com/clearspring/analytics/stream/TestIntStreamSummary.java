@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIntStreamSummary
+{
+    @Test
+    public void testMatchesStreamSummary()
+    {
+        Random random = new Random(5);
+        for (int capacity : new int[]{1, 10, 1000})
+        {
+            for (int universe : new int[]{20, 10000, Integer.MAX_VALUE})
+            {
+                StreamSummary<Integer> expected = new StreamSummary<Integer>(capacity);
+                IntStreamSummary actual = new IntStreamSummary(capacity);
+                for (int i = 0; i < 50000; i++)
+                {
+                    // skewed towards small items, and negative ones in the widest universe
+                    int item = universe == Integer.MAX_VALUE ? random.nextInt() >> random.nextInt(32) : (int) Math.pow(random.nextInt(universe), 2) / universe;
+                    int increment = 1 + (random.nextInt(4) == 0 ? random.nextInt(500) : random.nextInt(3));
+                    assertEquals(expected.offer(item, increment), actual.offer(item, increment));
+                }
+                assertEquals(expected.size(), actual.size());
+                assertEquals(expected.toString(), actual.toString());
+
+                List<Counter<Integer>> expectedTopK = expected.topK(capacity);
+                IntStreamSummary.Counters topK = actual.topK(capacity);
+                assertEquals(expectedTopK.size(), topK.size());
+                for (int i = 0; i < topK.size(); i++)
+                {
+                    Counter<Integer> counter = expectedTopK.get(i);
+                    assertEquals(counter.getItem().intValue(), topK.items[i]);
+                    assertEquals(counter.getCount(), topK.counts[i]);
+                    assertEquals(counter.getError(), topK.errors[i]);
+                    assertEquals(counter.getCount(), actual.getCount(topK.items[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        IntStreamSummary vs = new IntStreamSummary(100);
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++)
+        {
+            int item = random.nextInt(300) * 0x10001;
+            vs.offer(item);
+        }
+
+        IntStreamSummary clone = new IntStreamSummary(vs.toBytes());
+        assertEquals(vs.toString(), clone.toString());
+        assertEquals(vs.getCapacity(), clone.getCapacity());
+        assertEquals(vs.getCount(0x10001), clone.getCount(0x10001));
+
+        // Empty
+        vs = new IntStreamSummary(0);
+        assertEquals(vs.toString(), new IntStreamSummary(vs.toBytes()).toString());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc. 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLongStreamSummary
+{
+    @Test
+    public void testMatchesStreamSummary()
+    {
+        Random random = new Random(5);
+        for (int capacity : new int[]{1, 10, 1000})
+        {
+            for (long universe : new long[]{20, 10000, Long.MAX_VALUE})
+            {
+                StreamSummary<Long> expected = new StreamSummary<Long>(capacity);
+                LongStreamSummary actual = new LongStreamSummary(capacity);
+                for (int i = 0; i < 50000; i++)
+                {
+                    // skewed towards small items, and negative ones in the widest universe
+                    long item = universe == Long.MAX_VALUE ? random.nextLong() >> random.nextInt(64) : (long) Math.pow(random.nextInt((int) universe), 2) / universe;
+                    int increment = 1 + (random.nextInt(4) == 0 ? random.nextInt(500) : random.nextInt(3));
+                    assertEquals(expected.offer(item, increment), actual.offer(item, increment));
+                }
+                assertEquals(expected.size(), actual.size());
+                assertEquals(expected.toString(), actual.toString());
+
+                List<Counter<Long>> expectedTopK = expected.topK(capacity);
+                LongStreamSummary.Counters topK = actual.topK(capacity);
+                assertEquals(expectedTopK.size(), topK.size());
+                for (int i = 0; i < topK.size(); i++)
+                {
+                    Counter<Long> counter = expectedTopK.get(i);
+                    assertEquals(counter.getItem().longValue(), topK.items[i]);
+                    assertEquals(counter.getCount(), topK.counts[i]);
+                    assertEquals(counter.getError(), topK.errors[i]);
+                    assertEquals(counter.getCount(), actual.getCount(topK.items[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTopK()
+    {
+        LongStreamSummary vs = new LongStreamSummary(3);
+        long[] stream = {7, 7, 8, 9, 1, 2, 3, 7, 7, 1, 3, 1, 1};
+        for (long i : stream)
+        {
+            vs.offer(i);
+        }
+        assertArrayEquals(new long[]{1, 7}, vs.peek(2));
+        LongStreamSummary.Counters topK = vs.topK(10);
+        assertArrayEquals(new long[]{1, 7, 3}, topK.items);
+        assertArrayEquals(new long[]{5, 4, 4}, topK.counts);
+        assertArrayEquals(new long[]{2, 2, 2}, topK.errors);
+        assertEquals(0, vs.getCount(8));
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        LongStreamSummary vs = new LongStreamSummary(100);
+        LongStreamSummary expected = new LongStreamSummary(100);
+        Random random = new Random(9);
+        for (int i = 0; i < 10000; i++)
+        {
+            long item = random.nextInt(300) * 0x100000001L;
+            vs.offer(item);
+            expected.offer(item);
+        }
+
+        LongStreamSummary clone = new LongStreamSummary(vs.toBytes());
+        assertEquals(vs.toString(), clone.toString());
+        assertEquals(vs.getCapacity(), clone.getCapacity());
+
+        // carries on where it left off
+        for (int i = 0; i < 1000; i++)
+        {
+            long item = random.nextInt(300) * 0x100000001L;
+            expected.offer(item);
+            clone.offer(item);
+        }
+        assertEquals(expected.toString(), clone.toString());
+
+        // Empty
+        vs = new LongStreamSummary(0);
+        assertEquals(vs.toString(), new LongStreamSummary(vs.toBytes()).toString());
+    }
+}
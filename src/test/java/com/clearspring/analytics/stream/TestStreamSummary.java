@@ -25,13 +25,19 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
 import cern.jet.random.Distributions;
 import cern.jet.random.engine.RandomEngine;
+import com.google.common.io.Resources;
 
 
 public class TestStreamSummary
@@ -86,6 +92,170 @@ public class TestStreamSummary
         }
     }
 
+    @Test
+    public void testWeightedIncrementsKeepOrder()
+    {
+        Random random = new Random(3);
+        for (int capacity : new int[]{100, 1000})
+        {
+            StreamSummary<Integer> vs = new StreamSummary<Integer>(capacity);
+            long[] exact = new long[500];
+            for (int i = 0; i < 20000; i++)
+            {
+                int item = random.nextInt(exact.length);
+                int increment = 1 + random.nextInt(random.nextBoolean() ? 3 : 1000);
+                exact[item] += increment;
+                vs.offer(item, increment);
+            }
+
+            List<Counter<Integer>> topK = vs.topK(capacity);
+            for (int i = 1; i < topK.size(); i++)
+            {
+                assertTrue(topK.get(i - 1).getCount() >= topK.get(i).getCount());
+            }
+            for (Counter<Integer> c : topK)
+            {
+                if (capacity >= exact.length)
+                {
+                    assertEquals(exact[c.getItem()], c.getCount());
+                }
+                else
+                {
+                    assertTrue(c.getCount() - c.getError() <= exact[c.getItem()]);
+                    assertTrue(exact[c.getItem()] <= c.getCount());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWeightedIncrementsAfterReuse() throws IOException, ClassNotFoundException
+    {
+        StreamSummary<String> source = new StreamSummary<String>(3);
+        source.offer("x", 1);
+        source.offer("y", 2);
+        source.offer("z", 3);
+
+        // builds the bucket index of the summary before it is read over
+        StreamSummary<String> vs = new StreamSummary<String>(3);
+        vs.offer("a", 1);
+        vs.offer("b", 2);
+        vs.offer("a", 5);
+        vs.fromBytes(source.toBytes());
+
+        vs.offer("x", 5);
+        assertEquals(3, vs.size());
+        assertEquals(Arrays.asList("x", "z", "y"), vs.peek(3));
+        assertEquals(6, vs.topK(1).get(0).getCount());
+    }
+
+    @Test
+    public void testMerge()
+    {
+        Random random = new Random(7);
+        for (int capacity : new int[]{50, 2000})
+        {
+            long[] exact = new long[1000];
+            List<StreamSummary<Integer>> partitions = new ArrayList<StreamSummary<Integer>>();
+            for (int p = 0; p < 4; p++)
+            {
+                partitions.add(new StreamSummary<Integer>(capacity));
+            }
+            int total = 0;
+            for (int i = 0; i < 40000; i++)
+            {
+                // skewed towards small items
+                int item = (int) Math.pow(random.nextInt(exact.length), 2) / exact.length;
+                int increment = 1 + random.nextInt(3);
+                exact[item] += increment;
+                total += increment;
+                partitions.get(random.nextInt(partitions.size())).offer(item, increment);
+            }
+
+            StreamSummary<Integer> merged = StreamSummary.merge(capacity, partitions);
+            int distinct = 0;
+            for (long count : exact)
+            {
+                distinct += count > 0 ? 1 : 0;
+            }
+            assertEquals(Math.min(capacity, distinct), merged.size());
+            assertBounds(merged, exact);
+            // every item above the guaranteed threshold is kept
+            List<Integer> items = merged.peek(capacity);
+            for (int item = 0; item < exact.length; item++)
+            {
+                if (exact[item] > partitions.size() * total / capacity)
+                {
+                    assertTrue(items.contains(item));
+                }
+            }
+
+            StreamSummary<Integer> added = new StreamSummary<Integer>(capacity);
+            for (StreamSummary<Integer> partition : partitions)
+            {
+                added.addAll(partition);
+            }
+            assertBounds(added, exact);
+            if (capacity >= exact.length)
+            {
+                // nothing was dropped, so both are exact, up to the order of equal counts
+                assertEquals(new HashSet<String>(toStrings(merged.topK(capacity))), new HashSet<String>(toStrings(added.topK(capacity))));
+            }
+
+            // the merged summary keeps counting
+            merged.offer(-1, total);
+            assertEquals(Integer.valueOf(-1), merged.peek(1).get(0));
+        }
+    }
+
+    private static List<String> toStrings(List<Counter<Integer>> counters)
+    {
+        List<String> strings = new ArrayList<String>();
+        for (Counter<Integer> c : counters)
+        {
+            strings.add(c.toString());
+        }
+        return strings;
+    }
+
+    private static void assertBounds(StreamSummary<Integer> vs, long[] exact)
+    {
+        for (Counter<Integer> c : vs.topK(vs.size()))
+        {
+            assertTrue(c.getCount() - c.getError() <= exact[c.getItem()]);
+            assertTrue(exact[c.getItem()] <= c.getCount());
+            if (vs.getCapacity() >= exact.length)
+            {
+                assertEquals(0, c.getError());
+            }
+        }
+    }
+
+    @Test
+    public void testMergeMissingItems()
+    {
+        StreamSummary<String> a = new StreamSummary<String>(2);
+        StreamSummary<String> b = new StreamSummary<String>(3);
+        String[] streamA = {"X", "X", "X", "Y", "Y", "Z"};
+        for (String i : streamA)
+        {
+            a.offer(i);
+        }
+        b.offer("X", 2);
+        b.offer("W", 4);
+
+        // a is full with X:3 and Z:3, Z having evicted Y, b holds everything it saw
+        a.addAll(b);
+        List<Counter<String>> topK = a.topK(2);
+        assertEquals(2, a.size());
+        assertEquals("W", topK.get(0).getItem());
+        assertEquals(7, topK.get(0).getCount());
+        assertEquals(3, topK.get(0).getError());
+        assertEquals("X", topK.get(1).getItem());
+        assertEquals(5, topK.get(1).getCount());
+        assertEquals(0, topK.get(1).getError());
+    }
+
     @Test
     public void testGeometricDistribution()
     {
@@ -160,6 +330,24 @@ public class TestStreamSummary
     }
 
 
+    /**
+     * Written with writeObject before weighted increments were indexed, of x, y and z offered
+     * once, twice and three times to a StreamSummary of capacity 3
+     */
+    @Test
+    public void testReadsOlderObject() throws IOException, ClassNotFoundException
+    {
+        byte[] bytes = Base64.decodeBase64(Resources.toString(Resources.getResource(TestStreamSummary.class, "baseline_stream_summary.object"), Charset.forName("UTF-8")));
+        ObjectInput oi = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        @SuppressWarnings("unchecked")
+        StreamSummary<String> vs = (StreamSummary<String>) oi.readObject();
+        assertEquals(3, vs.getCapacity());
+        assertEquals(Arrays.asList("z", "y", "x"), vs.peek(3));
+
+        vs.offer("x", 5);
+        assertEquals(Arrays.asList("x", "z", "y"), vs.peek(3));
+    }
+
     @Test
     public void testByteSerialization() throws IOException, ClassNotFoundException
     {
@@ -117,4 +117,113 @@ public class RegisterSetTest
             assertEquals(rs.get(pos), merged.get(pos));
         }
     }
+
+    @Test
+    public void testHistogramTracking()
+    {
+        Random rand = new Random(3);
+        int count = (int) Math.pow(2, 10);
+        RegisterSet rs = new RegisterSet(count);
+        rs.trackHistogram();
+        RegisterSet other = new RegisterSet(count);
+
+        for (int i = 0; i < 5000; i++)
+        {
+            int pos = rand.nextInt(count);
+            int val = rand.nextInt(32);
+            switch (i % 3)
+            {
+                case 0:
+                    rs.updateIfGreater(pos, val);
+                    break;
+                case 1:
+                    rs.set(pos, val);
+                    break;
+                default:
+                    other.set(pos, val);
+            }
+            if (i % 1000 == 0)
+            {
+                rs.merge(other);
+            }
+        }
+
+        int[] expected = new int[32];
+        for (int pos = 0; pos < count; pos++)
+        {
+            expected[rs.get(pos)]++;
+        }
+        int[] histogram = rs.histogram();
+        for (int val = 0; val < expected.length; val++)
+        {
+            assertEquals(expected[val], histogram[val]);
+        }
+    }
+
+    @Test
+    public void testMax_matchesRegisterWise()
+    {
+        Random rand = new Random(11);
+        for (int i = 0; i < 100000; i++)
+        {
+            int x = 0;
+            int y = 0;
+            for (int j = 0; j < 6; j++)
+            {
+                // favour the extremes and equal values, where a borrow would leak between registers
+                int a = i % 4 == 0 ? 31 * rand.nextInt(2) : rand.nextInt(32);
+                int b = i % 3 == 0 ? a : rand.nextInt(32);
+                x |= a << (5 * j);
+                y |= b << (5 * j);
+            }
+            int max = RegisterSet.max(x, y);
+            for (int j = 0; j < 6; j++)
+            {
+                int a = (x >>> (5 * j)) & 0x1f;
+                int b = (y >>> (5 * j)) & 0x1f;
+                assertEquals(Math.max(a, b), (max >>> (5 * j)) & 0x1f);
+            }
+            assertEquals(0, max >>> 30);
+        }
+    }
+
+    @Test
+    public void testMergeMany()
+    {
+        Random rand = new Random(5);
+        // spans several merge blocks, and does not fill the last word
+        int count = 10000;
+        RegisterSet[] sets = new RegisterSet[20];
+        for (int i = 0; i < sets.length; i++)
+        {
+            sets[i] = new RegisterSet(count);
+            for (int j = 0; j < count / 4; j++)
+            {
+                sets[i].set(rand.nextInt(count), rand.nextInt(32));
+            }
+        }
+
+        RegisterSet expected = new RegisterSet(count);
+        for (RegisterSet set : sets)
+        {
+            expected.merge(set);
+        }
+        RegisterSet actual = new RegisterSet(count);
+        actual.set(0, 7);
+        actual.trackHistogram();
+        actual.merge(sets);
+        expected.updateIfGreater(0, 7);
+
+        int[] expectedHistogram = new int[32];
+        for (int pos = 0; pos < count; pos++)
+        {
+            assertEquals(expected.get(pos), actual.get(pos));
+            expectedHistogram[expected.get(pos)]++;
+        }
+        int[] histogram = actual.histogram();
+        for (int val = 0; val < expectedHistogram.length; val++)
+        {
+            assertEquals(expectedHistogram[val], histogram[val]);
+        }
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestConcurrentHyperLogLog
+{
+    @Test
+    public void testMatchesHyperLogLog() throws IOException
+    {
+        HyperLogLog hll = new HyperLogLog(14);
+        ConcurrentHyperLogLog concurrent = new ConcurrentHyperLogLog(14);
+        for (int i = 0; i < 100000; i++)
+        {
+            assertEquals(hll.offer(i), concurrent.offer(i));
+            if (i % 10000 == 0)
+            {
+                assertEquals(hll.cardinality(), concurrent.cardinality());
+            }
+        }
+        assertEquals(hll.cardinality(), concurrent.cardinality());
+        assertArrayEquals(hll.getBytes(), concurrent.getBytes());
+        assertEquals(hll.cardinality(), HyperLogLog.Builder.build(concurrent.getBytes()).cardinality());
+        assertArrayEquals(hll.getBytes(), concurrent.toHyperLogLog().getBytes());
+    }
+
+    @Test
+    public void testConcurrentOffers() throws Exception
+    {
+        final int threads = 8;
+        final int perThread = 100000;
+        final ConcurrentHyperLogLog concurrent = new ConcurrentHyperLogLog(12);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t * perThread;
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                    {
+                        concurrent.offer(offset + i);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        // no update may be lost, so the registers match a single threaded run exactly
+        HyperLogLog hll = new HyperLogLog(12);
+        for (int i = 0; i < threads * perThread; i++)
+        {
+            hll.offer(i);
+        }
+        assertArrayEquals(hll.getBytes(), concurrent.getBytes());
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException, IOException
+    {
+        HyperLogLog hll = new HyperLogLog(10);
+        ConcurrentHyperLogLog concurrent = new ConcurrentHyperLogLog(10);
+        HyperLogLog expected = new HyperLogLog(10);
+        for (int i = 0; i < 50000; i++)
+        {
+            hll.offer(i);
+            concurrent.offer(-i);
+            expected.offer(i);
+            expected.offer(-i);
+        }
+
+        ICardinality merged = concurrent.merge(hll, new ConcurrentHyperLogLog(hll));
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+
+        concurrent.addAll(hll);
+        assertEquals(expected.cardinality(), concurrent.cardinality());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMerge_differentSizes() throws CardinalityMergeException
+    {
+        new ConcurrentHyperLogLog(10).merge(new HyperLogLog(12));
+    }
+}
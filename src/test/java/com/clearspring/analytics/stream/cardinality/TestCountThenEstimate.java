@@ -20,11 +20,21 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
+import com.clearspring.analytics.hash.MurmurHash;
+
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
 
+import com.google.common.io.Resources;
+
 public class TestCountThenEstimate
 {
     @Test
@@ -159,6 +169,201 @@ public class TestCountThenEstimate
 
     }
 
+    @Test(expected = UnsupportedOperationException.class)
+    public void testOfferHashed_beforeTip()
+    {
+        new CountThenEstimate(100, new HyperLogLog.Builder(0.01)).offerHashed(new long[]{1L, 2L}, 0, 2);
+    }
+
+    @Test
+    public void testOfferHashed_afterTip()
+    {
+        CountThenEstimate cte = new CountThenEstimate(100, new HyperLogLog.Builder(0.01));
+        for (int i = 0; i < 200; i++)
+        {
+            cte.offer(i);
+        }
+        assertTrue(cte.tipped());
+
+        long[] hashes = new long[1000];
+        for (int i = 0; i < hashes.length; i++)
+        {
+            hashes[i] = (i + 1) * 0x9e3779b97f4a7c15L;
+        }
+        assertTrue(cte.offerHashed(hashes, 0, hashes.length));
+        assertFalse(cte.offerHashed(hashes, 0, hashes.length));
+        assertFalse(cte.offerHashed(hashes[5]));
+    }
+
+    @Test
+    public void testHashed() throws IOException, ClassNotFoundException
+    {
+        CountThenEstimate cte = new CountThenEstimate(1000, new HyperLogLogPlus.Builder(14, 25), true);
+        HyperLogLogPlus expected = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(cte.offer(Integer.toString(i)));
+            assertFalse(cte.offer(Integer.toString(i)));
+            expected.offerHashed(MurmurHash.hash64(Integer.toString(i)));
+        }
+        assertFalse(cte.tipped());
+        assertEquals(1000, cte.cardinality());
+        CountThenEstimate clone = new CountThenEstimate(cte.getBytes());
+        assertCountThenEstimateEquals(cte, clone);
+
+        // tips on the first new pre-hashed value
+        assertTrue(cte.offerHashed(new long[]{MurmurHash.hash64("0"), 42L}, 0, 2));
+        expected.offerHashed(42L);
+        assertTrue(cte.tipped());
+        assertArrayEquals(expected.getBytes(), cte.estimator.getBytes());
+
+        // elements are still offered by their hash once tipped
+        cte.offer("x");
+        expected.offerHashed(MurmurHash.hash64("x"));
+        assertArrayEquals(expected.getBytes(), cte.estimator.getBytes());
+
+        clone = new CountThenEstimate(cte.getBytes());
+        assertCountThenEstimateEquals(cte, clone);
+        clone.offer("y");
+        expected.offerHashed(MurmurHash.hash64("y"));
+        assertArrayEquals(expected.getBytes(), clone.estimator.getBytes());
+    }
+
+    @Test
+    public void testHashed_merge() throws CardinalityMergeException
+    {
+        CountThenEstimate hashed = new CountThenEstimate(100, new LinearCounting.Builder(1024), true);
+        CountThenEstimate objects = new CountThenEstimate(100, new LinearCounting.Builder(1024));
+        for (int i = 0; i < 30; i++)
+        {
+            hashed.offer(i);
+            objects.offer(i + 20);
+        }
+        CountThenEstimate merged = CountThenEstimate.mergeEstimators(objects, hashed);
+        assertTrue(merged.hashed);
+        assertFalse(merged.tipped());
+        assertEquals(50, merged.cardinality());
+
+        for (int i = 0; i < 100; i++)
+        {
+            hashed.offer(-i);
+        }
+        assertTrue(hashed.tipped());
+        merged = CountThenEstimate.mergeEstimators(hashed, objects);
+        assertTrue(merged.hashed);
+        assertTrue(merged.tipped());
+    }
+
+    @Test
+    public void testHashed_mergeTippedModes() throws CardinalityMergeException
+    {
+        CountThenEstimate hashed = new CountThenEstimate(10, new LinearCounting.Builder(1024), true);
+        CountThenEstimate objects = new CountThenEstimate(10, new LinearCounting.Builder(1024));
+        for (int i = 0; i < 5; i++)
+        {
+            hashed.offer(i);
+            objects.offer(i);
+        }
+        assertEquals(5, CountThenEstimate.mergeEstimators(hashed, objects).cardinality());
+
+        for (int i = 0; i < 20; i++)
+        {
+            objects.offer(i);
+        }
+        assertTrue(objects.tipped());
+        // the hashed elements cannot be counted by the tipped estimator of the others
+        try
+        {
+            CountThenEstimate.mergeEstimators(hashed, objects);
+            fail("Expected CountThenEstimateMergeException");
+        }
+        catch (CountThenEstimate.CountThenEstimateMergeException e)
+        {
+        }
+
+        for (int i = 0; i < 20; i++)
+        {
+            hashed.offer(i);
+        }
+        assertTrue(hashed.tipped());
+        try
+        {
+            CountThenEstimate.mergeEstimators(objects, hashed);
+            fail("Expected CountThenEstimateMergeException");
+        }
+        catch (CountThenEstimate.CountThenEstimateMergeException e)
+        {
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException, ClassNotFoundException
+    {
+        CountThenEstimate cte = new CountThenEstimate(100000, new HyperLogLogPlus.Builder(14, 25), false, 1000);
+        HyperLogLogPlus expected = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 100000; i++)
+        {
+            assertTrue(cte.offer(Integer.toString(i)));
+            expected.offerHashed(MurmurHash.hash64(Integer.toString(i)));
+            if (i == 500)
+            {
+                assertFalse(cte.hashed);
+                assertCountThenEstimateEquals(cte, new CountThenEstimate(cte.getBytes()));
+            }
+        }
+        assertFalse(cte.offer("0"));
+        assertTrue(cte.hashed);
+        assertTrue(cte.compressed != null);
+        assertFalse(cte.tipped());
+        assertEquals(100000, cte.cardinality());
+
+        // stays exact, and untipped, past the size of the estimator
+        CountThenEstimate clone = new CountThenEstimate(cte.getBytes());
+        assertCountThenEstimateEquals(cte, clone);
+        assertEquals(1000, clone.compressionPoint);
+
+        // tips to the same estimator as offering the hashes directly
+        assertTrue(cte.offer("x"));
+        expected.offerHashed(MurmurHash.hash64("x"));
+        assertTrue(cte.tipped());
+        assertArrayEquals(expected.getBytes(), cte.estimator.getBytes());
+    }
+
+    @Test
+    public void testCompressed_merge() throws CardinalityMergeException
+    {
+        CountThenEstimate[] ctes = new CountThenEstimate[4];
+        for (int i = 0; i < ctes.length; i++)
+        {
+            ctes[i] = new CountThenEstimate(100000, new LinearCounting.Builder(1024), false, 100);
+            for (int j = 0; j < 20000; j++)
+            {
+                ctes[i].offer(i * 10000 + j);
+            }
+        }
+        CountThenEstimate small = new CountThenEstimate(100000, new LinearCounting.Builder(1024));
+        for (int j = 0; j < 10; j++)
+        {
+            small.offer(-1 - j);
+        }
+
+        CountThenEstimate merged = CountThenEstimate.mergeEstimators(small, ctes[0], ctes[1], ctes[2]);
+        assertFalse(merged.tipped());
+        assertTrue(merged.compressed != null);
+        assertEquals(40010, merged.cardinality());
+
+        merged = CountThenEstimate.mergeEstimators(merged, ctes[3]);
+        assertFalse(merged.tipped());
+        assertEquals(50010, merged.cardinality());
+
+        for (int j = 0; j < 60000; j++)
+        {
+            ctes[3].offer(100000 + j);
+        }
+        merged = CountThenEstimate.mergeEstimators(ctes);
+        assertTrue(merged.tipped());
+    }
+
     @Test
     public void testLinearCountingSerialization() throws IOException, ClassNotFoundException
     {
@@ -247,6 +452,55 @@ public class TestCountThenEstimate
         assertEquals(0, clone.tippingPoint);
     }
 
+    /**
+     * Bytes written before HyperLogLog.Builder could be sparse, of 50 items offered to
+     * new CountThenEstimate(100, new HyperLogLog.Builder(0.05))
+     */
+    @Test
+    public void testReadsOlderBytes() throws IOException, ClassNotFoundException
+    {
+        // as before, reading bytes no smaller than the estimator tips right away
+        CountThenEstimate cte = new CountThenEstimate(resource("baseline_count_then_estimate.bytes"));
+        assertTrue(cte.tipped());
+        assertEquals(50, cte.cardinality(), 3);
+
+        HyperLogLog expected = new HyperLogLog(0.05);
+        for (int i = 0; i < 1000; i++)
+        {
+            cte.offer("item" + i);
+            expected.offer("item" + i);
+        }
+        assertTrue(cte.estimator instanceof HyperLogLog);
+        assertEquals(expected.cardinality(), cte.cardinality());
+    }
+
+    /**
+     * The same CountThenEstimate as {@link #testReadsOlderBytes()}, written with writeObject
+     */
+    @Test
+    public void testReadsOlderObject() throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(resource("baseline_count_then_estimate.object")));
+        CountThenEstimate cte = (CountThenEstimate) in.readObject();
+        assertFalse(cte.tipped());
+        assertEquals(100, cte.tippingPoint);
+        assertFalse(cte.hashed);
+        assertEquals(50, cte.cardinality());
+
+        for (int i = 0; i < 100; i++)
+        {
+            cte.offer("item" + i);
+        }
+        assertEquals(100, cte.cardinality());
+        cte.offer("item" + 100);
+        assertTrue(cte.tipped());
+    }
+
+    private static byte[] resource(String name) throws IOException
+    {
+        return Base64.decodeBase64(Resources.toString(Resources.getResource(TestCountThenEstimate.class, name), Charset.forName("UTF-8")));
+    }
+
 
     private void assertCountThenEstimateEquals(CountThenEstimate expected, CountThenEstimate actual) throws IOException
     {
@@ -270,6 +524,19 @@ public class TestCountThenEstimate
         }
 
         assertEquals(expected.counter, actual.counter);
+        assertEquals(expected.hashed, actual.hashed);
+        if (expected.hashes != null)
+        {
+            long[] expectedHashes = expected.hashes.toArray();
+            long[] actualHashes = actual.hashes.toArray();
+            Arrays.sort(expectedHashes);
+            Arrays.sort(actualHashes);
+            assertArrayEquals(expectedHashes, actualHashes);
+        }
+        if (expected.compressed != null)
+        {
+            assertArrayEquals(expected.compressed.toArray(), actual.compressed.toArray());
+        }
         assertEquals(expected.cardinality(), actual.cardinality());
 
     }
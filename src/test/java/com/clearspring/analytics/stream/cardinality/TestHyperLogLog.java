@@ -16,15 +16,23 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestHyperLogLog
@@ -59,6 +67,67 @@ public class TestHyperLogLog
         assertEquals(hll.cardinality(), hll2.cardinality());
     }
 
+    @Test
+    public void testWriteToByteBuffer() throws IOException
+    {
+        HyperLogLog hll = new HyperLogLog(10);
+        for (int i = 0; i < 1000; i++)
+        {
+            hll.offer(i);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(10);
+        dos.writeInt(hll.sizeof());
+        for (int x : hll.getRegisterSet().bits())
+        {
+            dos.writeInt(x);
+        }
+        byte[] expected = baos.toByteArray();
+        assertArrayEquals(expected, hll.getBytes());
+        assertEquals(expected.length, hll.serializedSize());
+
+        // the buffer's byte order and position must not matter
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        hll.writeTo(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        byte[] written = new byte[expected.length];
+        buffer.position(3);
+        buffer.get(written);
+        assertArrayEquals(expected, written);
+
+        buffer.position(3);
+        HyperLogLog read = HyperLogLog.readFrom(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        assertEquals(hll.cardinality(), read.cardinality());
+        assertArrayEquals(expected, read.getBytes());
+    }
+
+    @Test
+    public void testTrackRegisterHistogram() throws CardinalityMergeException
+    {
+        HyperLogLog scanned = new HyperLogLog(14);
+        HyperLogLog tracked = new HyperLogLog(14);
+        tracked.trackRegisterHistogram();
+        HyperLogLog other = new HyperLogLog(14);
+        for (int i = 0; i < 200000; i++)
+        {
+            scanned.offer(i);
+            tracked.offer(i);
+            other.offer(-i);
+            if (i % 10000 == 0)
+            {
+                assertEquals(scanned.cardinality(), tracked.cardinality());
+            }
+        }
+        scanned.addAll(other);
+        tracked.addAll(other);
+        assertEquals(scanned.cardinality(), tracked.cardinality());
+        assertEquals(scanned.merge(other).cardinality(), tracked.merge(other).cardinality());
+    }
+
     @Test
     public void testHighCardinality()
     {
@@ -129,6 +198,165 @@ public class TestHyperLogLog
         assertEquals(mergedEstimate, baselineEstimate);
     }
 
+    @Test
+    public void testAddAllMany() throws CardinalityMergeException, IOException
+    {
+        HyperLogLog[] hlls = new HyperLogLog[10];
+        HyperLogLog expected = new HyperLogLog(14);
+        for (int i = 0; i < hlls.length; i++)
+        {
+            hlls[i] = new HyperLogLog(14);
+            for (int j = 0; j < 10000; j++)
+            {
+                hlls[i].offer(i * 10000 + j);
+            }
+            expected.addAll(hlls[i]);
+        }
+        HyperLogLog actual = new HyperLogLog(14);
+        actual.addAll(hlls);
+        assertArrayEquals(expected.getBytes(), actual.getBytes());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAllMany_differentSizes() throws CardinalityMergeException
+    {
+        new HyperLogLog(14).addAll(new HyperLogLog(14), new HyperLogLog(12));
+    }
+
+    @Test
+    public void testFold() throws IOException, CardinalityMergeException
+    {
+        for (boolean sparse : new boolean[]{false, true})
+        {
+            for (int size : new int[]{0, 100, 100000})
+            {
+                HyperLogLog high = new HyperLogLog(14, sparse);
+                HyperLogLog low = new HyperLogLog(10);
+                for (int i = 0; i < size; i++)
+                {
+                    // int and long hashes
+                    high.offer(i);
+                    low.offer(i);
+                    high.offerHashed(MurmurHash.hash64(i));
+                    low.offerHashed(MurmurHash.hash64(i));
+                }
+                assertArrayEquals(low.getBytes(), high.fold(10).getBytes());
+                assertArrayEquals(high.getBytes(), high.fold(14).getBytes());
+
+                // merges fold to the lowest precision, on either side
+                HyperLogLog other = new HyperLogLog(10);
+                other.offer(-1);
+                low.addAll(other);
+                assertArrayEquals(low.getBytes(), high.merge(other).getBytes());
+                assertArrayEquals(low.getBytes(), other.merge(high).getBytes());
+            }
+        }
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAll_lowerPrecision() throws CardinalityMergeException
+    {
+        new HyperLogLog(14).addAll(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testImprovedEstimator()
+    {
+        for (int log2m : new int[]{4, 10, 14})
+        {
+            HyperLogLog dense = new HyperLogLog(log2m);
+            dense.useImprovedEstimator();
+            dense.trackRegisterHistogram();
+            HyperLogLog sparse = new HyperLogLog(log2m, true);
+            sparse.useImprovedEstimator();
+            double maxError = 5 * 1.04 / Math.sqrt(1 << log2m);
+            int offered = 0;
+            for (int n : new int[]{0, 10, 1000, 100000, 1000000})
+            {
+                for (; offered < n; offered++)
+                {
+                    dense.offer(offered);
+                    sparse.offer(offered);
+                }
+                assertEquals(dense.cardinality(), sparse.cardinality());
+                assertEquals(n, dense.cardinality(), n * maxError + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testSparse() throws IOException
+    {
+        for (int log2m : new int[]{6, 10, 14})
+        {
+            for (int n : new int[]{0, 5, 100, 1000, 20000})
+            {
+                HyperLogLog dense = new HyperLogLog(log2m);
+                HyperLogLog sparse = new HyperLogLog(log2m, true);
+                Random random = new Random(n);
+                for (int i = 0; i < n; i++)
+                {
+                    // repeated values, and both hash widths
+                    long hash = random.nextLong() | 1;
+                    assertEquals(dense.offerHashed(hash), sparse.offerHashed(hash));
+                    assertEquals(dense.offerHashed(hash), sparse.offerHashed(hash));
+                    assertEquals(dense.offer(i), sparse.offer(i));
+                }
+                assertEquals(dense.cardinality(), sparse.cardinality());
+                assertEquals(dense.sizeof(), sparse.sizeof());
+                assertArrayEquals(dense.getBytes(), sparse.getBytes());
+                assertArrayEquals(dense.getRegisterSet().bits(), sparse.getRegisterSet().bits());
+            }
+        }
+
+        HyperLogLog small = new HyperLogLog(14, true);
+        for (int i = 0; i < 100; i++)
+        {
+            small.offer(i);
+        }
+        assertTrue(small.isSparse());
+        assertFalse(HyperLogLog.Builder.build(small.getBytes()).isSparse());
+        assertFalse(new HyperLogLog(4, true).isSparse());
+    }
+
+    @Test
+    public void testSparse_merge() throws CardinalityMergeException, IOException
+    {
+        // all sparse and staying sparse, all sparse and spilling, and mixed
+        for (int size : new int[]{10, 300, 5000})
+        {
+            HyperLogLog[] sparse = new HyperLogLog[6];
+            HyperLogLog[] dense = new HyperLogLog[sparse.length];
+            for (int i = 0; i < sparse.length; i++)
+            {
+                sparse[i] = new HyperLogLog(10, true);
+                dense[i] = new HyperLogLog(10);
+                for (int j = 0; j < size; j++)
+                {
+                    sparse[i].offer(i * size / 2 + j);
+                    dense[i].offer(i * size / 2 + j);
+                }
+            }
+            HyperLogLog expected = (HyperLogLog) dense[0].merge(Arrays.copyOfRange(dense, 1, dense.length));
+
+            HyperLogLog merged = (HyperLogLog) sparse[0].merge(Arrays.copyOfRange(sparse, 1, sparse.length));
+            assertEquals(expected.cardinality(), merged.cardinality());
+            assertArrayEquals(expected.getBytes(), merged.getBytes());
+            assertEquals(size == 10, merged.isSparse());
+
+            HyperLogLog oneAtATime = new HyperLogLog(10, true);
+            for (int i = 0; i < sparse.length; i++)
+            {
+                oneAtATime.addAll(i % 2 == 0 ? sparse[i] : dense[i]);
+            }
+            assertArrayEquals(expected.getBytes(), oneAtATime.getBytes());
+
+            HyperLogLog mixed = new HyperLogLog(10);
+            mixed.addAll(sparse[0], dense[1], sparse[2], dense[3], sparse[4], dense[5]);
+            assertArrayEquals(expected.getBytes(), mixed.getBytes());
+        }
+    }
+
     @Test
     @Ignore
     public void testPrecise() throws CardinalityMergeException
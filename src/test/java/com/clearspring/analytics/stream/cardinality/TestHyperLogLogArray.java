@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestHyperLogLogArray
+{
+    @Test
+    public void testMatchesHyperLogLog() throws IOException
+    {
+        // a small segment size spreads the counters over several buffers
+        HyperLogLogArray array = new HyperLogLogArray(10, 50, 3000);
+        HyperLogLog[] hlls = new HyperLogLog[array.size()];
+        for (int id = 0; id < hlls.length; id++)
+        {
+            hlls[id] = new HyperLogLog(10);
+        }
+
+        Random rand = new Random(1);
+        for (int i = 0; i < 200000; i++)
+        {
+            int id = rand.nextInt(hlls.length);
+            // skew the counters so their estimates cover both the small and large ranges
+            int value = rand.nextInt(1 + id * 1000);
+            assertEquals(hlls[id].offer(value), array.offer(id, value));
+            long hash = rand.nextLong();
+            assertEquals(hlls[id].offerHashed(hash), array.offerHashed(id, hash));
+        }
+
+        for (int id = 0; id < hlls.length; id++)
+        {
+            assertEquals(hlls[id].cardinality(), array.cardinality(id));
+            assertArrayEquals(hlls[id].getBytes(), array.get(id).getBytes());
+        }
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException
+    {
+        HyperLogLogArray array = new HyperLogLogArray(12, 4, 2000);
+        HyperLogLogArray other = new HyperLogLogArray(12, 3);
+        HyperLogLog expected = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++)
+        {
+            array.offer(1, i);
+            other.offer(2, -i);
+            expected.offer(i);
+            expected.offer(-i);
+        }
+        array.merge(1, other, 2);
+        assertEquals(expected.cardinality(), array.cardinality(1));
+
+        array.merge(3, array, 1);
+        assertEquals(expected.cardinality(), array.cardinality(3));
+        assertEquals(0, array.cardinality(0));
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMerge_differentSizes() throws CardinalityMergeException
+    {
+        new HyperLogLogArray(12, 1).merge(0, new HyperLogLogArray(10, 1), 0);
+    }
+
+    @Test
+    public void testSerialization() throws IOException
+    {
+        HyperLogLogArray array = new HyperLogLogArray(8, 100, 1000);
+        for (int i = 0; i < 100000; i++)
+        {
+            array.offer(i % array.size(), i);
+        }
+
+        byte[] bytes = array.getBytes();
+        assertEquals(8 + array.sizeof(), bytes.length);
+        HyperLogLogArray copy = HyperLogLogArray.readFrom(new ByteArrayInputStream(bytes));
+        assertEquals(array.size(), copy.size());
+        assertEquals(array.getLog2m(), copy.getLog2m());
+        for (int id = 0; id < array.size(); id++)
+        {
+            assertEquals(array.cardinality(id), copy.cardinality(id));
+        }
+        assertArrayEquals(bytes, copy.getBytes());
+    }
+}
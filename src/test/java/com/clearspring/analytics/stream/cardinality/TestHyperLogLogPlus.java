@@ -16,15 +16,20 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.Varint;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -130,6 +135,235 @@ public class TestHyperLogLogPlus
 //        }
 //    }
 
+    @Test
+    public void testOfferHashed() throws IOException
+    {
+        final int[] cardinalities = {10, 1000, 100000};
+        for (int sp : new int[]{0, 25})
+        {
+            for (int cardinality : cardinalities)
+            {
+                HyperLogLogPlus viaObject = new HyperLogLogPlus(14, sp);
+                HyperLogLogPlus viaHash = new HyperLogLogPlus(14, sp);
+                for (int i = 0; i < cardinality; i++)
+                {
+                    String val = "i" + i;
+                    viaObject.offer(val);
+                    viaHash.offerHashed(MurmurHash.hash64(val));
+                }
+                assertEquals(viaObject.cardinality(), viaHash.cardinality());
+                assertTrue(Arrays.equals(viaObject.getBytes(), viaHash.getBytes()));
+            }
+        }
+    }
+
+    @Test
+    public void testOfferHashedInt()
+    {
+        for (int sp : new int[]{0, 25})
+        {
+            HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(14, sp);
+            int count = 70000;
+            for (int i = 0; i < count; i++)
+            {
+                hyperLogLogPlus.offerHashed(MurmurHash.hash("i" + i));
+            }
+            long estimate = hyperLogLogPlus.cardinality();
+            double se = count * (1.04 / Math.sqrt(Math.pow(2, 14)));
+
+            assertTrue(estimate >= count - (3 * se));
+            assertTrue(estimate <= count + (3 * se));
+        }
+    }
+
+    @Test
+    public void testEstimateBias_matchesNearestNeighbors()
+    {
+        Random rand = new Random(7);
+        for (int p = 4; p <= 18; p++)
+        {
+            double[] estimates = BiasCorrection.forPrecision(p).getRawEstimates();
+            List<Double> probes = new ArrayList<Double>();
+            probes.add(estimates[0] - 100);
+            probes.add(Double.MAX_VALUE);
+            for (int i = 0; i < estimates.length; i++)
+            {
+                probes.add(estimates[i]);
+                if (i > 0)
+                {
+                    probes.add((estimates[i - 1] + estimates[i]) / 2);
+                }
+            }
+            for (int i = 0; i < 1000; i++)
+            {
+                probes.add(estimates[0] + rand.nextDouble() * (estimates[estimates.length - 1] - estimates[0]));
+            }
+            for (double estimate : probes)
+            {
+                assertEquals(treeMapEstimateBias(estimate, p), HyperLogLogPlus.getEstimateBias(estimate, p), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testBiasCorrection_loadedOncePerPrecision()
+    {
+        assertSame(BiasCorrection.forPrecision(14), BiasCorrection.forPrecision(14));
+        // first and last entries of the published tables
+        assertEquals(11, BiasCorrection.forPrecision(4).getRawEstimates()[0], 0);
+        assertEquals(10, BiasCorrection.forPrecision(4).getBiases()[0], 0);
+        assertEquals(189084, BiasCorrection.forPrecision(18).getRawEstimates()[0], 0);
+        double[] biases = BiasCorrection.forPrecision(18).getBiases();
+        assertEquals(-713.308999999892, biases[biases.length - 1], 0);
+        for (int p = BiasCorrection.MIN_PRECISION; p <= BiasCorrection.MAX_PRECISION; p++)
+        {
+            BiasCorrection table = BiasCorrection.forPrecision(p);
+            assertEquals(table.getRawEstimates().length, table.getBiases().length);
+        }
+    }
+
+    @Test
+    public void testFold() throws IOException, CardinalityMergeException
+    {
+        // stays sparse at both precisions, and normal at both
+        for (int sp : new int[]{0, 25})
+        {
+            for (int size : new int[]{0, 300, 100000})
+            {
+                for (boolean compressed : new boolean[]{false, true})
+                {
+                    HyperLogLogPlus high = new HyperLogLogPlus(14, sp);
+                    HyperLogLogPlus low = new HyperLogLogPlus(10, sp);
+                    if (compressed)
+                    {
+                        high.compressSparseSet();
+                    }
+                    for (int i = 0; i < size; i++)
+                    {
+                        high.offer(i);
+                        low.offer(i);
+                    }
+                    HyperLogLogPlus folded = high.fold(10);
+                    assertEquals(low.cardinality(), folded.cardinality());
+                    assertArrayEquals(low.getBytes(), folded.getBytes());
+                    assertArrayEquals(high.getBytes(), high.fold(14).getBytes());
+
+                    // merges fold to the lowest precision, on either side
+                    HyperLogLogPlus other = new HyperLogLogPlus(10, sp);
+                    other.offer(-1);
+                    low.addAll(other);
+                    assertArrayEquals(low.getBytes(), ((HyperLogLogPlus) high.merge(other)).getBytes());
+                    assertArrayEquals(low.getBytes(), ((HyperLogLogPlus) other.merge(high)).getBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFold_sparseToNormal() throws IOException
+    {
+        // 2000 entries fit the sparse set at p = 14 but not at p = 8
+        HyperLogLogPlus high = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus low = new HyperLogLogPlus(8, 25);
+        for (int i = 0; i < 2000; i++)
+        {
+            high.offer(i);
+            low.offer(i);
+        }
+        assertArrayEquals(low.getBytes(), high.fold(8).getBytes());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAll_lowerPrecision() throws CardinalityMergeException
+    {
+        new HyperLogLogPlus(14, 25).addAll(new HyperLogLogPlus(12, 25));
+    }
+
+    @Test
+    public void testImprovedEstimator() throws CardinalityMergeException
+    {
+        for (int p : new int[]{4, 10, 14, 20})
+        {
+            HyperLogLogPlus hll = new HyperLogLogPlus(p);
+            hll.useImprovedEstimator();
+            HyperLogLogPlus tracked = new HyperLogLogPlus(p);
+            tracked.useImprovedEstimator();
+            tracked.trackRegisterHistogram();
+            double maxError = 5 * 1.04 / Math.sqrt(1 << p);
+            int offered = 0;
+            // from almost empty to far past the range of the bias tables
+            for (int n : new int[]{0, 10, 1000, 100000, 3000000})
+            {
+                for (; offered < n; offered++)
+                {
+                    long hash = MurmurHash.hash64(offered);
+                    hll.offerHashed(hash);
+                    tracked.offerHashed(hash);
+                }
+                assertEquals(hll.cardinality(), tracked.cardinality());
+                assertEquals(n, hll.cardinality(), n * maxError + 1);
+            }
+            HyperLogLogPlus merged = (HyperLogLogPlus) hll.merge(new HyperLogLogPlus(p));
+            assertEquals(hll.cardinality(), merged.cardinality());
+        }
+    }
+
+    /**
+     * The original bias lookup: every squared distance into a sorted map, then the first six.
+     */
+    private static double treeMapEstimateBias(double estimate, int p)
+    {
+        BiasCorrection table = BiasCorrection.forPrecision(p);
+        SortedMap<Double, Integer> distances = new TreeMap<Double, Integer>();
+        int index = 0;
+        for (double rawEstimate : table.getRawEstimates())
+        {
+            distances.put(Math.pow(estimate - rawEstimate, 2), index++);
+        }
+        int[] nearest = new int[6];
+        int i = 0;
+        for (Integer neighbor : distances.values())
+        {
+            nearest[i++] = neighbor;
+            if (i >= 6)
+            {
+                break;
+            }
+        }
+        double[] biases = table.getBiases();
+        double biasTotal = 0.0d;
+        for (int neighbor : nearest)
+        {
+            biasTotal += biases[neighbor];
+        }
+        return biasTotal / nearest.length;
+    }
+
+    @Test
+    public void testTrackRegisterHistogram() throws CardinalityMergeException
+    {
+        for (int sp : new int[]{0, 25})
+        {
+            HyperLogLogPlus scanned = new HyperLogLogPlus(14, sp);
+            HyperLogLogPlus tracked = new HyperLogLogPlus(14, sp);
+            tracked.trackRegisterHistogram();
+            HyperLogLogPlus other = new HyperLogLogPlus(14, sp);
+            for (int i = 0; i < 200000; i++)
+            {
+                scanned.offer(i);
+                tracked.offer(i);
+                other.offer(-i);
+                if (i % 10000 == 0)
+                {
+                    assertEquals(scanned.cardinality(), tracked.cardinality());
+                }
+            }
+            scanned.addAll(other);
+            tracked.addAll(other);
+            assertEquals(scanned.cardinality(), tracked.cardinality());
+        }
+    }
+
     @Test
     public void testSerialization_Normal() throws IOException
     {
@@ -157,6 +391,43 @@ public class TestHyperLogLogPlus
         assertEquals(hll.cardinality(), hll2.cardinality());
     }
 
+    @Test
+    public void testWriteToByteBuffer() throws IOException
+    {
+        HyperLogLogPlus sparse = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus normal = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 100; i++)
+        {
+            sparse.offer(i);
+        }
+        for (int i = 0; i < 100000; i++)
+        {
+            normal.offer(i);
+        }
+
+        for (HyperLogLogPlus hll : new HyperLogLogPlus[]{sparse, normal})
+        {
+            byte[] expected = hll.getBytes();
+            assertEquals(expected.length, hll.serializedSize());
+
+            // the buffer's byte order and position must not matter
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(3);
+            hll.writeTo(buffer);
+            assertEquals(3 + expected.length, buffer.position());
+            byte[] written = new byte[expected.length];
+            buffer.position(3);
+            buffer.get(written);
+            assertArrayEquals(expected, written);
+
+            buffer.position(3);
+            HyperLogLogPlus read = HyperLogLogPlus.readFrom(buffer);
+            assertEquals(3 + expected.length, buffer.position());
+            assertEquals(hll.cardinality(), read.cardinality());
+            assertArrayEquals(expected, read.getBytes());
+        }
+    }
+
     @Test
     public void testHighCardinality()
     {
@@ -189,6 +460,56 @@ public class TestHyperLogLogPlus
 
     }
 
+    @Test
+    public void testSortEncodedSet_matchesIndexOrder()
+    {
+        Random r = new Random(7);
+        HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(14, 25);
+        for (int n : new int[]{0, 1, 2, 15, 16, 17, 100, 3073})
+        {
+            int[] testSet = new int[n];
+            for (int i = 0; i < n; i++)
+            {
+                // mix of flagged and unflagged encodings with plenty of duplicate indexes
+                int idx = r.nextInt(1 << 12) << 13;
+                testSet[i] = r.nextBoolean() ? (idx << 1) : (((idx << 6) | r.nextInt(64)) << 1) | 1;
+            }
+            hyperLogLogPlus.sortEncodedSet(testSet, n);
+            for (int i = 1; i < n; i++)
+            {
+                int prevIdx = (testSet[i - 1] & 1) == 1 ? testSet[i - 1] >>> 7 : testSet[i - 1] >>> 1;
+                int idx = (testSet[i] & 1) == 1 ? testSet[i] >>> 7 : testSet[i] >>> 1;
+                assertTrue(prevIdx <= idx);
+                if (prevIdx == idx)
+                {
+                    assertTrue((testSet[i - 1] & 0x7f) <= (testSet[i] & 0x7f));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSparseSetHasNoDuplicateIndexes()
+    {
+        HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(14, 25);
+        Random r = new Random(11);
+        for (int i = 0; i < 5000; i++)
+        {
+            hyperLogLogPlus.offerHashed(r.nextLong());
+            // zero the bits between p and sp so the run length gets encoded too
+            hyperLogLogPlus.offerHashed(r.nextLong() & 0xfffc007fffffffffL);
+        }
+        hyperLogLogPlus.mergeTempList();
+        int[] sparseSet = hyperLogLogPlus.getSparseSet();
+        assertTrue(sparseSet.length > 5000);
+        for (int i = 1; i < sparseSet.length; i++)
+        {
+            int prevIdx = (sparseSet[i - 1] & 1) == 1 ? sparseSet[i - 1] >>> 7 : sparseSet[i - 1] >>> 1;
+            int idx = (sparseSet[i] & 1) == 1 ? sparseSet[i] >>> 7 : sparseSet[i] >>> 1;
+            assertTrue(prevIdx < idx);
+        }
+    }
+
     @Test
     public void testMergeSelf_forceNormal() throws CardinalityMergeException, IOException
     {
@@ -414,6 +735,222 @@ public class TestHyperLogLogPlus
 
     }
 
+    @Test
+    public void testAddAllMany_mixedFormats() throws CardinalityMergeException, IOException
+    {
+        for (int sp : new int[]{0, 25})
+        {
+            HyperLogLogPlus[] hlls = new HyperLogLogPlus[8];
+            for (int i = 0; i < hlls.length; i++)
+            {
+                hlls[i] = new HyperLogLogPlus(14, 25);
+                // every other estimator stays sparse
+                int size = i % 2 == 0 ? 50000 : 100;
+                for (int j = 0; j < size; j++)
+                {
+                    hlls[i].offer(i * 100000 + j);
+                }
+            }
+            HyperLogLogPlus expected = new HyperLogLogPlus(14, sp);
+            HyperLogLogPlus actual = new HyperLogLogPlus(14, sp);
+            for (HyperLogLogPlus hll : hlls)
+            {
+                expected.addAll(hll);
+            }
+            actual.addAll(hlls);
+            assertEquals(expected.cardinality(), actual.cardinality());
+            assertArrayEquals(expected.getBytes(), actual.getBytes());
+        }
+    }
+
+    @Test
+    public void testAddAllMany_sparse() throws CardinalityMergeException, IOException
+    {
+        // the union stays sparse, spills part way through, and spills on the first few
+        for (int size : new int[]{20, 100, 600})
+        {
+            HyperLogLogPlus[] hlls = new HyperLogLogPlus[30];
+            for (int i = 0; i < hlls.length; i++)
+            {
+                hlls[i] = new HyperLogLogPlus(10, 14);
+                for (int j = 0; j < size; j++)
+                {
+                    // overlapping neighbours
+                    hlls[i].offer(i * size / 2 + j);
+                }
+            }
+            HyperLogLogPlus expected = new HyperLogLogPlus(10, 14);
+            HyperLogLogPlus actual = new HyperLogLogPlus(10, 14);
+            for (HyperLogLogPlus hll : hlls)
+            {
+                expected.addAll(hll);
+            }
+            actual.addAll(hlls);
+            assertEquals(expected.cardinality(), actual.cardinality());
+            assertArrayEquals(expected.getBytes(), actual.getBytes());
+        }
+    }
+
+    @Test
+    public void testCompressSparseSet() throws IOException
+    {
+        // stays sparse, converts while being offered, and compressed after some offers
+        for (int size : new int[]{0, 1, 50, 700, 3000, 40000})
+        {
+            for (int compressAfter : new int[]{0, size / 3})
+            {
+                HyperLogLogPlus expected = new HyperLogLogPlus(10, 14);
+                HyperLogLogPlus actual = new HyperLogLogPlus(10, 14);
+                for (int i = 0; i < size; i++)
+                {
+                    if (i == compressAfter)
+                    {
+                        actual.compressSparseSet();
+                    }
+                    expected.offer(i);
+                    actual.offer(i);
+                    if (i % 97 == 0)
+                    {
+                        // repeats
+                        expected.offer(i / 2);
+                        actual.offer(i / 2);
+                    }
+                }
+                actual.compressSparseSet();
+                assertEquals(expected.cardinality(), actual.cardinality());
+                assertArrayEquals(expected.getSparseSet(), actual.getSparseSet());
+                assertArrayEquals(expected.getBytes(), actual.getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testCompressSparseSet_serialization() throws IOException
+    {
+        HyperLogLogPlus hll = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 1000; i++)
+        {
+            hll.offer(i);
+        }
+        byte[] bytes = hll.getBytes();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        HyperLogLogPlus compressed = HyperLogLogPlus.readFrom(buffer, true);
+        assertEquals(bytes.length, buffer.position());
+        assertEquals(hll.cardinality(), compressed.cardinality());
+        assertArrayEquals(hll.getSparseSet(), compressed.getSparseSet());
+        assertArrayEquals(bytes, compressed.getBytes());
+
+        // keeps offering from where it was read
+        for (int i = 1000; i < 2000; i++)
+        {
+            hll.offer(i);
+            compressed.offer(i);
+        }
+        assertArrayEquals(hll.getBytes(), compressed.getBytes());
+    }
+
+    @Test
+    public void testCompressSparseSet_merge() throws CardinalityMergeException, IOException
+    {
+        // the union stays sparse, spills part way through, and spills on the first few
+        for (int size : new int[]{20, 100, 600})
+        {
+            HyperLogLogPlus[] hlls = new HyperLogLogPlus[30];
+            for (int i = 0; i < hlls.length; i++)
+            {
+                hlls[i] = new HyperLogLogPlus(10, 14);
+                for (int j = 0; j < size; j++)
+                {
+                    hlls[i].offer(i * size / 2 + j);
+                }
+                if (i % 2 == 0)
+                {
+                    hlls[i].compressSparseSet();
+                }
+            }
+            HyperLogLogPlus expected = new HyperLogLogPlus(10, 14);
+            HyperLogLogPlus one = new HyperLogLogPlus(10, 14);
+            HyperLogLogPlus many = new HyperLogLogPlus(10, 14);
+            one.compressSparseSet();
+            many.compressSparseSet();
+            for (HyperLogLogPlus hll : hlls)
+            {
+                expected.addAll(hll);
+                one.addAll(hll);
+            }
+            many.addAll(hlls);
+            HyperLogLogPlus merged = (HyperLogLogPlus) hlls[0].merge(Arrays.copyOfRange(hlls, 1, hlls.length));
+            for (HyperLogLogPlus actual : new HyperLogLogPlus[]{one, many, merged})
+            {
+                assertEquals(expected.cardinality(), actual.cardinality());
+                assertArrayEquals(expected.getBytes(), actual.getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testMergeSerialized() throws CardinalityMergeException, IOException
+    {
+        // p = 10, sp = 11 makes entries with the same idx' but different run lengths common
+        // sizes {300, 300, 300} stay sparse, {800, 800, 800} spill, 5000 is normal already
+        int[][] sizes = {{300, 300, 300}, {800, 800, 800}, {300, 5000, 200}, {250}};
+        for (int[] sketchSizes : sizes)
+        {
+            HyperLogLogPlus[] hlls = new HyperLogLogPlus[sketchSizes.length];
+            byte[][] bytes = new byte[hlls.length][];
+            for (int i = 0; i < hlls.length; i++)
+            {
+                hlls[i] = new HyperLogLogPlus(10, 11);
+                for (int j = 0; j < sketchSizes[i]; j++)
+                {
+                    // overlapping ranges, so some entries are identical too
+                    hlls[i].offer(i * 700 + j);
+                }
+                bytes[i] = hlls[i].getBytes();
+            }
+            HyperLogLogPlus expected = new HyperLogLogPlus(10, 11);
+            expected.addAll(hlls);
+
+            byte[] merged = HyperLogLogPlus.mergeSerialized(bytes);
+            assertArrayEquals(expected.getBytes(), merged);
+            assertEquals(expected.cardinality(), HyperLogLogPlus.Builder.build(merged).cardinality());
+        }
+    }
+
+    @Test
+    public void testMergeSerialized_advancesPositions() throws CardinalityMergeException, IOException
+    {
+        HyperLogLogPlus sparse = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus normal = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 100; i++)
+        {
+            sparse.offer(i);
+        }
+        for (int i = 0; i < 100000; i++)
+        {
+            normal.offer(-i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sparse.serializedSize() + normal.serializedSize() + 1);
+        sparse.writeTo(buffer);
+        normal.writeTo(buffer);
+        ByteBuffer first = buffer.duplicate();
+        first.position(0);
+        ByteBuffer second = buffer.duplicate();
+        second.position(sparse.serializedSize());
+
+        byte[] merged = HyperLogLogPlus.mergeSerialized(first, second);
+        assertEquals(sparse.serializedSize(), first.position());
+        assertEquals(sparse.serializedSize() + normal.serializedSize(), second.position());
+        assertArrayEquals(((HyperLogLogPlus) sparse.merge(normal)).getBytes(), merged);
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMergeSerialized_differentSizes() throws CardinalityMergeException, IOException
+    {
+        HyperLogLogPlus.mergeSerialized(new HyperLogLogPlus(10, 25).getBytes(), new HyperLogLogPlus(12, 25).getBytes());
+    }
+
     @Test
     public void testMerge_ManySparse() throws CardinalityMergeException
     {
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestHyperLogLogView
+{
+    @Test
+    public void testCardinality() throws IOException
+    {
+        for (int log2m : new int[]{4, 10, 14})
+        {
+            for (int n : new int[]{0, 10, 1000, 100000})
+            {
+                HyperLogLog hll = new HyperLogLog(log2m);
+                for (int i = 0; i < n; i++)
+                {
+                    hll.offer(i);
+                }
+                HyperLogLogView view = HyperLogLogView.wrap(hll.getBytes());
+                assertEquals(hll.cardinality(), view.cardinality());
+                assertEquals(hll.sizeof(), view.sizeof());
+                assertEquals(log2m, view.getLog2m());
+                assertArrayEquals(hll.getBytes(), view.toHyperLogLog().getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testAddAll() throws CardinalityMergeException
+    {
+        HyperLogLog[] hlls = new HyperLogLog[5];
+        int size = 0;
+        for (int i = 0; i < hlls.length; i++)
+        {
+            hlls[i] = new HyperLogLog(12);
+            for (int j = 0; j < 10000; j++)
+            {
+                hlls[i].offer(i * 5000 + j);
+            }
+            size += hlls[i].serializedSize();
+        }
+
+        // consecutive sketches in one little endian buffer, each wrapped where it lies
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (HyperLogLog hll : hlls)
+        {
+            hll.writeTo(buffer);
+        }
+        buffer.flip();
+        HyperLogLogView[] views = new HyperLogLogView[hlls.length];
+        for (int i = 0; i < views.length; i++)
+        {
+            views[i] = HyperLogLogView.wrap(buffer);
+        }
+        assertEquals(size, buffer.position());
+
+        HyperLogLog expected = new HyperLogLog(12);
+        expected.trackRegisterHistogram();
+        expected.addAll(hlls);
+        HyperLogLog actual = new HyperLogLog(12);
+        actual.trackRegisterHistogram();
+        actual.addAll(views);
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertArrayEquals(expected.getRegisterSet().bits(), actual.getRegisterSet().bits());
+        assertArrayEquals(expected.getRegisterSet().histogram(), actual.getRegisterSet().histogram());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAll_differentSizes() throws Exception
+    {
+        new HyperLogLog(10).addAll(HyperLogLogView.wrap(new HyperLogLog(12).getBytes()));
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testWrap_truncated() throws IOException
+    {
+        byte[] bytes = new HyperLogLog(10).getBytes();
+        HyperLogLogView.wrap(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+}
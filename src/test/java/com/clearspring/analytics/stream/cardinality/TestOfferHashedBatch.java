@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.clearspring.analytics.util.IBuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Offering a batch of hashes must leave every estimator exactly as offering them one by one.
+ */
+@RunWith(Parameterized.class)
+public class TestOfferHashedBatch
+{
+    private static final int BATCH = 1000;
+
+    private final IBuilder<ICardinality> builder;
+    private final int count;
+
+    public TestOfferHashedBatch(IBuilder<ICardinality> builder, int count)
+    {
+        this.builder = builder;
+        this.count = count;
+    }
+
+    @Test
+    public void testLongBatches() throws IOException
+    {
+        Random rand = new Random(count);
+        long[] hashes = new long[count + 7];
+        for (int i = 0; i < hashes.length; i++)
+        {
+            hashes[i] = rand.nextLong();
+        }
+
+        ICardinality single = builder.build();
+        ICardinality batch = builder.build();
+        // start a few entries in, so the offset is honoured
+        for (int from = 7; from < hashes.length; from += BATCH)
+        {
+            int length = Math.min(BATCH, hashes.length - from);
+            boolean modified = false;
+            for (int i = from; i < from + length; i++)
+            {
+                modified |= single.offerHashed(hashes[i]);
+            }
+            assertEquals(modified, batch.offerHashed(hashes, from, length));
+        }
+        assertEquals(single.cardinality(), batch.cardinality());
+        assertArrayEquals(single.getBytes(), batch.getBytes());
+    }
+
+    @Test
+    public void testIntBatches() throws IOException
+    {
+        Random rand = new Random(count);
+        int[] hashes = new int[count + 7];
+        for (int i = 0; i < hashes.length; i++)
+        {
+            hashes[i] = rand.nextInt();
+        }
+
+        ICardinality single = builder.build();
+        ICardinality batch = builder.build();
+        for (int from = 7; from < hashes.length; from += BATCH)
+        {
+            int length = Math.min(BATCH, hashes.length - from);
+            boolean modified = false;
+            for (int i = from; i < from + length; i++)
+            {
+                modified |= single.offerHashed(hashes[i]);
+            }
+            assertEquals(modified, batch.offerHashed(hashes, from, length));
+        }
+        assertEquals(single.cardinality(), batch.cardinality());
+        assertArrayEquals(single.getBytes(), batch.getBytes());
+    }
+
+    @Parameters
+    public static Collection<Object[]> estimators()
+    {
+        return Arrays.asList(new Object[][]{
+                {new HyperLogLog.Builder(0.01), 100000},
+                {new HyperLogLogPlus.Builder(14, 0), 100000},
+                // stays sparse, then converts to normal part way
+                {new HyperLogLogPlus.Builder(14, 25), 500},
+                {new HyperLogLogPlus.Builder(14, 25), 100000},
+                {new AdaptiveCounting.Builder(16), 100000},
+                {new LinearCounting.Builder(65536), 100000},
+                {new IBuilder<ICardinality>()
+                {
+                    @Override
+                    public ICardinality build()
+                    {
+                        return new LogLog(14);
+                    }
+
+                    @Override
+                    public int sizeof()
+                    {
+                        return 1 << 14;
+                    }
+                }, 100000},
+                {new IBuilder<ICardinality>()
+                {
+                    @Override
+                    public ICardinality build()
+                    {
+                        return new ConcurrentHyperLogLog(14);
+                    }
+
+                    @Override
+                    public int sizeof()
+                    {
+                        return new ConcurrentHyperLogLog(14).sizeof();
+                    }
+                }, 100000},
+        });
+    }
+}
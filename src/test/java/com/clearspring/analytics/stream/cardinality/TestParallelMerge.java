@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestParallelMerge
+{
+    /**
+     * One, two and three levels of tasks.
+     */
+    private static final int[] COUNTS = {1, ParallelMerge.FAN_IN, 300, ParallelMerge.FAN_IN * ParallelMerge.FAN_IN + 1};
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHyperLogLog() throws Exception
+    {
+        for (int count : COUNTS)
+        {
+            List<HyperLogLog> hlls = new ArrayList<HyperLogLog>();
+            for (int i = 0; i < count; i++)
+            {
+                hlls.add(offer(new HyperLogLog(6), i));
+            }
+            assertMerged(hlls);
+        }
+    }
+
+    @Test
+    public void testHyperLogLogPlus() throws Exception
+    {
+        for (int count : COUNTS)
+        {
+            // mostly sparse, with a normal one now and then
+            List<HyperLogLogPlus> hlls = new ArrayList<HyperLogLogPlus>();
+            for (int i = 0; i < count; i++)
+            {
+                hlls.add(offer(i % 97 == 5 ? new HyperLogLogPlus(6) : new HyperLogLogPlus(6, 10), i));
+            }
+            assertMerged(hlls);
+        }
+    }
+
+    @Test
+    public void testHyperLogLogPlus_allSparse() throws Exception
+    {
+        List<HyperLogLogPlus> hlls = new ArrayList<HyperLogLogPlus>();
+        for (int i = 0; i < 200; i++)
+        {
+            HyperLogLogPlus hll = new HyperLogLogPlus(14, 25);
+            hll.offer(i);
+            hlls.add(hll);
+        }
+        assertMerged(hlls);
+    }
+
+    @Test
+    public void testLinearCounting() throws Exception
+    {
+        for (int count : COUNTS)
+        {
+            List<LinearCounting> lcs = new ArrayList<LinearCounting>();
+            for (int i = 0; i < count; i++)
+            {
+                lcs.add(offer(new LinearCounting(64), i));
+            }
+            assertMerged(lcs);
+        }
+    }
+
+    @Test
+    public void testLogLog() throws Exception
+    {
+        for (int count : COUNTS)
+        {
+            List<LogLog> logLogs = new ArrayList<LogLog>();
+            List<AdaptiveCounting> adaptive = new ArrayList<AdaptiveCounting>();
+            for (int i = 0; i < count; i++)
+            {
+                logLogs.add(offer(new LogLog(6), i));
+                adaptive.add(offer(new AdaptiveCounting(6), i));
+            }
+            assertMerged(logLogs);
+            assertMerged(adaptive);
+        }
+    }
+
+    @Test
+    public void testDifferentPrecisions() throws Exception
+    {
+        // folded to the lowest, wherever it is
+        List<HyperLogLog> hlls = new ArrayList<HyperLogLog>();
+        List<HyperLogLogPlus> hllps = new ArrayList<HyperLogLogPlus>();
+        for (int i = 0; i < 300; i++)
+        {
+            hlls.add(offer(new HyperLogLog(i == 250 ? 6 : 7 + i % 2), i));
+            hllps.add(offer(i % 3 == 0 ? new HyperLogLogPlus(8) : new HyperLogLogPlus(i == 250 ? 6 : 7, 10), i));
+        }
+        assertMerged(hlls);
+        assertMerged(hllps);
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testDifferentClasses() throws Exception
+    {
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 300; i++)
+        {
+            estimators.add(i == 250 ? new LinearCounting(64) : new HyperLogLog(6));
+        }
+        ParallelMerge.merge(executor, estimators);
+    }
+
+    /**
+     * Offers a few values unique to the estimator and a few shared with its neighbours.
+     */
+    private static <T extends ICardinality> T offer(T estimator, int i)
+    {
+        for (int j = 0; j < 5; j++)
+        {
+            estimator.offer(i * 10 + j);
+            estimator.offer(-(i / 3) * 10 - j - 1);
+        }
+        return estimator;
+    }
+
+    private void assertMerged(List<? extends ICardinality> estimators) throws CardinalityMergeException, InterruptedException, IOException
+    {
+        List<byte[]> before = new ArrayList<byte[]>();
+        for (ICardinality estimator : estimators)
+        {
+            before.add(estimator.getBytes().clone());
+        }
+
+        ICardinality first = estimators.get(0);
+        ICardinality expected = first.merge(estimators.subList(1, estimators.size()).toArray(new ICardinality[0]));
+        ICardinality actual = ParallelMerge.merge(executor, estimators);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.cardinality(), actual.cardinality());
+        assertArrayEquals(expected.getBytes(), actual.getBytes());
+
+        for (int i = 0; i < estimators.size(); i++)
+        {
+            assertArrayEquals(before.get(i), estimators.get(i).getBytes());
+        }
+    }
+}
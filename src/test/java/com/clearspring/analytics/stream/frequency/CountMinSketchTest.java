@@ -19,11 +19,18 @@ import org.junit.Test;
 
 import com.clearspring.analytics.stream.frequency.CountMinSketch.CMSMergeException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
@@ -129,6 +136,39 @@ public class CountMinSketchTest
     }
 
 
+    @Test
+    public void testWriteToByteBuffer()
+    {
+        CountMinSketch sketch = new CountMinSketch(0.001, 0.99, 1);
+        for (int i = 0; i < 10000; i++)
+        {
+            sketch.add(i % 100, 1);
+        }
+
+        byte[] expected = CountMinSketch.serialize(sketch);
+        assertEquals(expected.length, sketch.serializedSize());
+
+        // the buffer's byte order and position must not matter
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        sketch.writeTo(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        byte[] written = new byte[expected.length];
+        buffer.position(3);
+        buffer.get(written);
+        assertArrayEquals(expected, written);
+
+        buffer.position(3);
+        CountMinSketch read = CountMinSketch.readFrom(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        assertEquals(sketch.size(), read.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(sketch.estimateCount(i), read.estimateCount(i));
+        }
+        assertArrayEquals(expected, CountMinSketch.serialize(read));
+    }
+
     @Test
     public void merge() throws CMSMergeException
     {
@@ -169,6 +209,41 @@ public class CountMinSketchTest
         }
     }
 
+    @Test
+    public void testMergeParallel() throws Exception
+    {
+        int seed = 7364181;
+        Random r = new Random(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            // one, two and three levels of tasks
+            for (int count : new int[]{1, 300, CountMinSketch.MERGE_FAN_IN * CountMinSketch.MERGE_FAN_IN + 1})
+            {
+                List<CountMinSketch> sketches = new ArrayList<CountMinSketch>();
+                for (int i = 0; i < count; i++)
+                {
+                    CountMinSketch sketch = new CountMinSketch(3, 32, seed);
+                    for (int j = 0; j < 5; j++)
+                    {
+                        sketch.add(r.nextInt(1000), 1 + r.nextInt(10));
+                    }
+                    sketches.add(sketch);
+                }
+                byte[] first = CountMinSketch.serialize(sketches.get(0));
+
+                CountMinSketch expected = CountMinSketch.merge(sketches.toArray(new CountMinSketch[count]));
+                CountMinSketch actual = CountMinSketch.merge(executor, sketches);
+                assertArrayEquals(CountMinSketch.serialize(expected), CountMinSketch.serialize(actual));
+                assertArrayEquals(first, CountMinSketch.serialize(sketches.get(0)));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testMergeEmpty() throws CMSMergeException
     {
@@ -5,6 +5,11 @@ import cern.jet.random.engine.MersenneTwister64;
 import cern.jet.random.engine.RandomEngine;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class QDigestTest
@@ -79,6 +84,39 @@ public class QDigestTest
         }
     }
 
+    @Test
+    public void testWriteToByteBuffer()
+    {
+        QDigest digest = new QDigest(100);
+        for (long x = 0; x < 10000; x++)
+        {
+            digest.offer(x * x % 7919);
+        }
+
+        byte[] expected = QDigest.serialize(digest);
+        assertEquals(expected.length, digest.serializedSize());
+
+        // the buffer's byte order and position must not matter
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        digest.writeTo(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        byte[] written = new byte[expected.length];
+        buffer.position(3);
+        buffer.get(written);
+        assertArrayEquals(expected, written);
+
+        buffer.position(3);
+        QDigest read = QDigest.readFrom(buffer);
+        assertEquals(3 + expected.length, buffer.position());
+        for (double q = 0; q <= 1; q += 0.1)
+        {
+            assertEquals(digest.getQuantile(q), read.getQuantile(q));
+        }
+        // includes the compression factor, which used to be read back as a long
+        assertArrayEquals(expected, QDigest.serialize(QDigest.deserialize(expected)));
+    }
+
     private double[] actualRankOf(long x, long[] ys) {
         int numSmaller = 0;
         int numEqual = 0;
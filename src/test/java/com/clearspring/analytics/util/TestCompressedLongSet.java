@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCompressedLongSet
+{
+    @Test
+    public void testAdd()
+    {
+        CompressedLongSet set = new CompressedLongSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(-1));
+        assertEquals(4, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertFalse(set.contains(1));
+        // sorted as unsigned
+        assertArrayEquals(new long[]{0, Long.MAX_VALUE, Long.MIN_VALUE, -1}, set.toArray());
+    }
+
+    @Test
+    public void testMatchesHashSet()
+    {
+        // small values all share one key, random ones split across the containers
+        Random random = new Random(11);
+        for (boolean small : new boolean[]{true, false})
+        {
+            CompressedLongSet set = new CompressedLongSet();
+            Set<Long> expected = new HashSet<Long>();
+            for (int i = 0; i < 200000; i++)
+            {
+                long value = small ? random.nextInt(100000) : random.nextLong();
+                assertEquals(expected.add(value), set.add(value));
+            }
+            assertEquals(expected.size(), set.size());
+            for (long value : expected)
+            {
+                assertTrue(set.contains(value));
+            }
+            assertFalse(set.contains(small ? -1 : 100001));
+            assertArrayEquals(sortedUnsigned(expected), set.toArray());
+        }
+    }
+
+    @Test
+    public void testAddAll()
+    {
+        Random random = new Random(7);
+        CompressedLongSet a = new CompressedLongSet();
+        CompressedLongSet b = new CompressedLongSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 50000; i++)
+        {
+            long value = random.nextLong();
+            a.add(value);
+            expected.add(value);
+            if (i % 3 == 0)
+            {
+                b.add(value);
+            }
+            value = random.nextLong();
+            b.add(value);
+            expected.add(value);
+        }
+        a.addAll(b);
+        assertEquals(expected.size(), a.size());
+        assertArrayEquals(sortedUnsigned(expected), a.toArray());
+
+        // still accepts values after the merge
+        assertTrue(a.add(42));
+        assertTrue(a.contains(42));
+
+        CompressedLongSet empty = new CompressedLongSet();
+        empty.addAll(a);
+        assertArrayEquals(a.toArray(), empty.toArray());
+    }
+
+    @Test
+    public void testSerialization() throws IOException
+    {
+        Random random = new Random(3);
+        for (int n : new int[]{0, 1, 300, 100000})
+        {
+            CompressedLongSet set = new CompressedLongSet();
+            for (int i = 0; i < n; i++)
+            {
+                set.add(random.nextLong());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            set.writeTo(new DataOutputStream(bytes));
+            CompressedLongSet clone = CompressedLongSet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(set.size(), clone.size());
+            assertArrayEquals(set.toArray(), clone.toArray());
+            // the hashes past the key bits take at most 7 bytes once split
+            assertTrue(n < 1000 || bytes.size() < 8 * n);
+
+            long value = random.nextLong();
+            assertEquals(set.add(value), clone.add(value));
+            assertArrayEquals(set.toArray(), clone.toArray());
+        }
+    }
+
+    private static long[] sortedUnsigned(Set<Long> values)
+    {
+        long[] sorted = new long[values.size()];
+        int i = 0;
+        for (long value : values)
+        {
+            sorted[i++] = value ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(sorted);
+        for (i = 0; i < sorted.length; i++)
+        {
+            sorted[i] ^= Long.MIN_VALUE;
+        }
+        return sorted;
+    }
+}
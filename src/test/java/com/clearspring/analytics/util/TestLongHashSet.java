@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLongHashSet
+{
+    @Test
+    public void testAdd()
+    {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(-1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertFalse(set.contains(1));
+    }
+
+    @Test
+    public void testMatchesHashSet()
+    {
+        // small values, as weak hashes, and random ones
+        Random random = new Random(11);
+        for (boolean small : new boolean[]{true, false})
+        {
+            LongHashSet set = new LongHashSet(10);
+            Set<Long> expected = new HashSet<Long>();
+            for (int i = 0; i < 100000; i++)
+            {
+                long value = small ? random.nextInt(50000) : random.nextLong();
+                assertEquals(expected.add(value), set.add(value));
+            }
+            assertEquals(expected.size(), set.size());
+            for (long value : expected)
+            {
+                assertTrue(set.contains(value));
+            }
+
+            long[] values = set.toArray();
+            long[] expectedValues = new long[expected.size()];
+            int i = 0;
+            for (long value : expected)
+            {
+                expectedValues[i++] = value;
+            }
+            Arrays.sort(values);
+            Arrays.sort(expectedValues);
+            assertArrayEquals(expectedValues, values);
+        }
+    }
+}